@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+/**
+ * Logs the throughput of note updates by id made the old way, the version bumped by a second
+ * sql string with the arguments pasted in, then with a statement compiled for each update,
+ * then with the statements cached by {@link NoteUpdater}. Run it on a device:
+ * adb shell am instrument -w -e class net.micode.notes.data.NoteUpdateBenchmark
+ * net.micode.notes.test/android.test.InstrumentationTestRunner
+ */
+public class NoteUpdateBenchmark extends AndroidTestCase {
+    private static final String TAG = NoteUpdateBenchmark.class.getSimpleName();
+
+    private static final String DB_NAME = "note_update_benchmark.db";
+
+    private static final int NOTE_COUNT = 1000;
+
+    private static final int UPDATE_COUNT = 20000;
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    private long[] mNoteIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        mHelper = new NotesDatabaseHelper(getContext(), DB_NAME);
+        mDb = mHelper.getWritableDatabase();
+        mNoteIds = new long[NOTE_COUNT];
+        ContentValues values = new ContentValues();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < NOTE_COUNT; i++) {
+                values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+                values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+                mNoteIds[i] = mDb.insert(TABLE.NOTE, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testUpdateThroughput() {
+        run("pasted version bump", new Updater() {
+            public void update(long noteId, ContentValues values) {
+                mDb.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.VERSION + "="
+                        + NoteColumns.VERSION + "+1 WHERE " + NoteColumns.ID + "="
+                        + String.valueOf(noteId));
+                mDb.update(TABLE.NOTE, values, NoteColumns.ID + "=" + noteId, null);
+            }
+        });
+
+        run("compiled per update", new Updater() {
+            public void update(long noteId, ContentValues values) {
+                SQLiteStatement statement = mDb.compileStatement("UPDATE " + TABLE.NOTE
+                        + " SET " + NoteColumns.LOCAL_MODIFIED + "=?,"
+                        + NoteColumns.MODIFIED_DATE + "=?," + NoteColumns.VERSION + "="
+                        + NoteColumns.VERSION + "+1 WHERE " + NoteColumns.ID + "=" + noteId);
+                try {
+                    DatabaseUtils.bindObjectToProgram(statement, 1,
+                            values.get(NoteColumns.LOCAL_MODIFIED));
+                    DatabaseUtils.bindObjectToProgram(statement, 2,
+                            values.get(NoteColumns.MODIFIED_DATE));
+                    statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+
+        final NoteUpdater noteUpdater = new NoteUpdater(mDb);
+        run("cached statement", new Updater() {
+            public void update(long noteId, ContentValues values) {
+                noteUpdater.update(values, NoteColumns.ID + "=?", new String[] {
+                    String.valueOf(noteId)
+                });
+            }
+        });
+    }
+
+    private interface Updater {
+        void update(long noteId, ContentValues values);
+    }
+
+    /**
+     * The updates run in one transaction, so the time is the statements' and not the commits'
+     */
+    private void run(String name, Updater updater) {
+        ContentValues values = new ContentValues();
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < UPDATE_COUNT; i++) {
+                values.put(NoteColumns.LOCAL_MODIFIED, 1);
+                values.put(NoteColumns.MODIFIED_DATE, i);
+                updater.update(mNoteIds[i % NOTE_COUNT], values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        long time = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, name + ": " + UPDATE_COUNT + " updates in " + time + "ms, "
+                + (UPDATE_COUNT * 1000L / Math.max(time, 1)) + " updates/s");
+    }
+}
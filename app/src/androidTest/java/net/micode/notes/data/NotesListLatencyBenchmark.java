@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Logs the latency of the first page of a 10k notes list, once with the database idle and
+ * once while another thread writes 10k notes in sync sized transactions. Run it on a device:
+ * adb shell am instrument -w -e class net.micode.notes.data.NotesListLatencyBenchmark
+ * net.micode.notes.test/android.test.InstrumentationTestRunner
+ */
+public class NotesListLatencyBenchmark extends AndroidTestCase {
+    private static final String TAG = NotesListLatencyBenchmark.class.getSimpleName();
+
+    private static final String DB_NAME = "list_latency_benchmark.db";
+
+    private static final int NOTE_COUNT = 10000;
+
+    private static final int NOTES_PER_TRANSACTION = 100;
+
+    private static final int PAGE_SIZE = 50;
+
+    private static final int IDLE_QUERIES = 200;
+
+    private NotesDatabaseHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        mHelper = new NotesDatabaseHelper(getContext(), DB_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testListLatency() throws Exception {
+        writeNotes(0);
+
+        long[] idle = new long[IDLE_QUERIES];
+        for (int i = 0; i < IDLE_QUERIES; i++) {
+            idle[i] = queryFirstPage();
+        }
+        logLatency("idle", idle, IDLE_QUERIES);
+
+        final Throwable[] writerError = new Throwable[1];
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    writeNotes(NOTE_COUNT);
+                } catch (Throwable e) {
+                    writerError[0] = e;
+                }
+            }
+        });
+        long[] busy = new long[NOTE_COUNT];
+        int count = 0;
+        long start = System.currentTimeMillis();
+        writer.start();
+        while (writer.isAlive() && count < busy.length) {
+            busy[count++] = queryFirstPage();
+        }
+        writer.join();
+        long writeTime = System.currentTimeMillis() - start;
+        assertNull(writerError[0]);
+        assertTrue(count > 0);
+        logLatency("writing", busy, count);
+        Log.i(TAG, NOTE_COUNT + " notes written in " + writeTime + "ms");
+    }
+
+    /**
+     * Insert the notes to the root folder, in transactions like the ones of sync
+     */
+    private void writeNotes(int firstId) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < NOTE_COUNT; i += NOTES_PER_TRANSACTION) {
+            db.beginTransaction();
+            try {
+                for (int j = i; j < i + NOTES_PER_TRANSACTION && j < NOTE_COUNT; j++) {
+                    values.clear();
+                    values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+                    values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+                    values.put(NoteColumns.SNIPPET, "note " + (firstId + j));
+                    values.put(NoteColumns.CREATED_DATE, now);
+                    values.put(NoteColumns.MODIFIED_DATE, now - j);
+                    db.insert(TABLE.NOTE, null, values);
+                }
+                NoteSearchIndex.refresh(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * The time in milliseconds of the list's first page, read to its end like the list does
+     */
+    private long queryFirstPage() {
+        Uri uri = Notes.CONTENT_NOTE_LIST_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_FOLDER, String.valueOf(Notes.ID_ROOT_FOLDER))
+                .appendQueryParameter(Notes.PARAM_LIMIT, String.valueOf(PAGE_SIZE))
+                .build();
+        ArrayList<String> args = new ArrayList<String>();
+        String sql = NotesProvider.buildFolderPageQuery(uri, null, args);
+        long start = System.nanoTime();
+        Cursor c = mHelper.getWritableDatabase().rawQuery(sql,
+                args.toArray(new String[args.size()]));
+        try {
+            int rows = 0;
+            while (c.moveToNext()) {
+                rows++;
+            }
+            assertEquals(PAGE_SIZE, rows);
+        } finally {
+            c.close();
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static void logLatency(String name, long[] times, int count) {
+        long[] sorted = Arrays.copyOf(times, count);
+        Arrays.sort(sorted);
+        Log.i(TAG, name + ": " + count + " queries, median " + sorted[count / 2] + "ms, p95 "
+                + sorted[count * 95 / 100] + "ms, max " + sorted[count - 1] + "ms");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the queries of the app find their notes by an index
+ * instead of scanning the note table. The selections are the ones of the classes named in
+ * each test.
+ */
+public class QueryPlanTest extends AndroidTestCase {
+    private static final String DB_NAME = "query_plan_test.db";
+
+    /**
+     * "SCAN note" or "SCAN TABLE note" on older sqlite, with or without an index walked in
+     * its whole
+     */
+    private static final Pattern NOTE_SCAN = Pattern.compile("^SCAN (TABLE )?" + TABLE.NOTE
+            + "\\b");
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        mHelper = new NotesDatabaseHelper(getContext(), DB_NAME);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * NotesListActivity, the first page of the root folder
+     */
+    public void testRootFolderPage() {
+        assertFolderPage(Notes.ID_ROOT_FOLDER, null);
+    }
+
+    /**
+     * NotesListActivity, a following page of a folder
+     */
+    public void testFolderPageAfter() {
+        assertFolderPage(1000, Notes.TYPE_NOTE + ",1300000000000,1200");
+    }
+
+    /**
+     * NotesListActivity, the folders to move the notes to
+     */
+    public void testDestinationFolders() {
+        String selection = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>? AND "
+                + NoteColumns.ID + "<>?";
+        String[] args = new String[] {
+                String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER), "1000"
+        };
+        String order = NoteColumns.MODIFIED_DATE + " DESC";
+        assertNoteQuery(selection, args, order);
+        assertNoteQuery("(" + selection + ") OR (" + NoteColumns.ID + "="
+                + Notes.ID_ROOT_FOLDER + ")", args, order);
+    }
+
+    /**
+     * NoteWidgetProvider, the note shown by a widget
+     */
+    public void testWidgetNote() {
+        assertNoteQuery(NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?",
+                new String[] {
+                        "7", String.valueOf(Notes.ID_TRASH_FOLER)
+                }, null);
+    }
+
+    /**
+     * AlarmInitReceiver, the alarms to set again after boot
+     */
+    public void testAlertNotes() {
+        assertNoteQuery(NoteColumns.ALERTED_DATE + ">? AND " + NoteColumns.TYPE + "="
+                + Notes.TYPE_NOTE, new String[] {
+                String.valueOf(System.currentTimeMillis())
+        }, null);
+    }
+
+    /**
+     * GTaskManager, the local note of a remote node
+     */
+    public void testNoteOfGid() {
+        assertNoteQuery("(gtask_id=? AND parent_id<>?)", new String[] {
+                "gid", String.valueOf(Notes.ID_TRASH_FOLER)
+        }, null);
+    }
+
+    private void assertFolderPage(long folderId, String after) {
+        Uri.Builder builder = Notes.CONTENT_NOTE_LIST_URI.buildUpon();
+        builder.appendQueryParameter(Notes.PARAM_FOLDER, String.valueOf(folderId));
+        builder.appendQueryParameter(Notes.PARAM_LIMIT, "50");
+        if (after != null) {
+            builder.appendQueryParameter(Notes.PARAM_AFTER, after);
+        }
+        ArrayList<String> args = new ArrayList<String>();
+        String sql = NotesProvider.buildFolderPageQuery(builder.build(), null, args);
+        assertNoNoteScan(sql, args.toArray(new String[args.size()]));
+    }
+
+    private void assertNoteQuery(String selection, String[] args, String order) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, TABLE.NOTE, null, selection,
+                null, null, order, null);
+        assertNoNoteScan(sql, args);
+    }
+
+    private void assertNoNoteScan(String sql, String[] args) {
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailColumn = c.getColumnIndexOrThrow("detail");
+            StringBuilder plan = new StringBuilder();
+            boolean scan = false;
+            while (c.moveToNext()) {
+                String detail = c.getString(detailColumn);
+                plan.append(detail).append('\n');
+                scan |= NOTE_SCAN.matcher(detail).find();
+            }
+            assertFalse(sql + "\n" + plan, scan);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * An in-process GTask server behind {@link GTaskTransport}. It keeps the task lists in memory
+ * and answers the setup page and the create, update, move and get_all actions the way the
+ * client expects, so the whole sync can run without the network. Every change gets a new
+ * sync point, which is also the last modified time of the changed entity.
+ */
+public class FakeGTaskServer implements GTaskTransport {
+    private static final long CLIENT_VERSION = 1;
+
+    /**
+     * The task lists by gid, in the order they were created
+     */
+    private final LinkedHashMap<String, JSONObject> mLists;
+
+    /**
+     * The tasks of each list in their order, the deleted ones are kept with the flag set
+     */
+    private final HashMap<String, ArrayList<JSONObject>> mListTasks;
+
+    private final HashMap<String, JSONObject> mTasks;
+
+    private long mSyncPoint;
+
+    private int mNextId;
+
+    private boolean mLoggedin;
+
+    private long mLatencyMs;
+
+    private long mRequestCount;
+
+    private long mRequestTime;
+
+    private long mBytesSent;
+
+    private long mBytesReceived;
+
+    private long mParseTime;
+
+    public FakeGTaskServer() {
+        mLists = new LinkedHashMap<String, JSONObject>();
+        mListTasks = new HashMap<String, ArrayList<JSONObject>>();
+        mTasks = new HashMap<String, JSONObject>();
+        mSyncPoint = 0;
+        mNextId = 1;
+        mLoggedin = false;
+        mLatencyMs = 0;
+    }
+
+    /**
+     * Wait this long before answering each request, like a round trip to the real server
+     */
+    public synchronized void setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    public synchronized int getTaskCount() {
+        int count = 0;
+        for (JSONObject task : mTasks.values()) {
+            if (!task.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getListCount() {
+        return mLists.size();
+    }
+
+    public synchronized ArrayList<String> getListNames() throws JSONException {
+        ArrayList<String> names = new ArrayList<String>();
+        for (JSONObject list : mLists.values()) {
+            names.add(list.getString(GTaskStringUtils.GTASK_JSON_NAME));
+        }
+        return names;
+    }
+
+    /**
+     * Create a list as another client would, its gid is returned
+     */
+    public synchronized String addList(String name) throws JSONException {
+        JSONObject entity = new JSONObject();
+        entity.put(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE, GTaskStringUtils.GTASK_JSON_TYPE_GROUP);
+        entity.put(GTaskStringUtils.GTASK_JSON_NAME, name);
+        JSONObject action = new JSONObject();
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, 0);
+        action.put(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA, entity);
+        return create(action).getString(GTaskStringUtils.GTASK_JSON_NEW_ID);
+    }
+
+    /**
+     * Create a task at the end of the list as another client would, its gid is returned
+     */
+    public synchronized String addTask(String listGid, String name, String notes)
+            throws JSONException {
+        JSONObject entity = new JSONObject();
+        entity.put(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE, GTaskStringUtils.GTASK_JSON_TYPE_TASK);
+        entity.put(GTaskStringUtils.GTASK_JSON_NAME, name);
+        entity.put(GTaskStringUtils.GTASK_JSON_NOTES, notes);
+        JSONObject action = new JSONObject();
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, 0);
+        action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
+        action.put(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA, entity);
+        return create(action).getString(GTaskStringUtils.GTASK_JSON_NEW_ID);
+    }
+
+    /**
+     * Rename the list as another client would, null if there is no such list
+     */
+    public synchronized String renameList(String oldName, String newName) throws JSONException {
+        for (JSONObject list : mLists.values()) {
+            if (oldName.equals(list.getString(GTaskStringUtils.GTASK_JSON_NAME))) {
+                list.put(GTaskStringUtils.GTASK_JSON_NAME, newName);
+                list.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, nextSyncPoint());
+                return list.getString(GTaskStringUtils.GTASK_JSON_ID);
+            }
+        }
+        return null;
+    }
+
+    public <T> T get(String url, ResponseParser<T> parser) throws IOException, JSONException {
+        String response;
+        synchronized (this) {
+            JSONObject setup = new JSONObject();
+            setup.put("v", CLIENT_VERSION);
+            JSONObject jsTasks = new JSONObject();
+            JSONArray jsLists = new JSONArray();
+            for (JSONObject list : mLists.values()) {
+                jsLists.put(new JSONObject(list.toString()));
+            }
+            jsTasks.put(GTaskStringUtils.GTASK_JSON_LISTS, jsLists);
+            setup.put("t", jsTasks);
+            response = "<html><body><script type=\"text/javascript\">_setup("
+                    + setup.toString() + ")</script></body></html>";
+            mLoggedin = true;
+        }
+        return respond(url.length(), response, parser);
+    }
+
+    public <T> T post(String url, String name, String value, ResponseParser<T> parser)
+            throws IOException, JSONException {
+        String response;
+        synchronized (this) {
+            if (!mLoggedin) {
+                throw new IOException("not logged in");
+            }
+            JSONObject jsRequest = new JSONObject(value);
+            JSONArray actions = jsRequest.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+            JSONObject jsResponse = new JSONObject();
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < actions.length(); i++) {
+                JSONObject action = actions.getJSONObject(i);
+                String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+                if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                    results.put(create(action));
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                    results.put(update(action));
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type)) {
+                    results.put(move(action));
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                    jsResponse.put(GTaskStringUtils.GTASK_JSON_TASKS, getAll(action, jsRequest
+                            .optLong(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT)));
+                } else {
+                    throw new JSONException("unknown action type: " + type);
+                }
+            }
+            jsResponse.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+            jsResponse.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, mSyncPoint);
+            response = jsResponse.toString();
+        }
+        return respond(url.length() + name.length() + value.length() + 1, response, parser);
+    }
+
+    private <T> T respond(int bytesSent, String response, ResponseParser<T> parser)
+            throws IOException, JSONException {
+        long start = System.currentTimeMillis();
+        long latency;
+        synchronized (this) {
+            latency = mLatencyMs;
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                throw new IOException("request interrupted");
+            }
+        }
+        long parseStart = System.currentTimeMillis();
+        T result = parser.parse(new StringReader(response));
+        long end = System.currentTimeMillis();
+        synchronized (this) {
+            mRequestCount++;
+            mRequestTime += end - start;
+            mParseTime += end - parseStart;
+            mBytesSent += bytesSent;
+            mBytesReceived += response.length();
+        }
+        return result;
+    }
+
+    private JSONObject create(JSONObject action) throws JSONException {
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String type = entity.getString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE);
+        String gid = String.valueOf(mNextId++);
+        long syncPoint = nextSyncPoint();
+
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(type)) {
+            JSONObject list = new JSONObject();
+            list.put(GTaskStringUtils.GTASK_JSON_ID, gid);
+            list.put(GTaskStringUtils.GTASK_JSON_NAME, entity.getString(
+                    GTaskStringUtils.GTASK_JSON_NAME));
+            list.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, syncPoint);
+            mLists.put(gid, list);
+            mListTasks.put(gid, new ArrayList<JSONObject>());
+        } else if (GTaskStringUtils.GTASK_JSON_TYPE_TASK.equals(type)) {
+            ArrayList<JSONObject> tasks = getListTasks(action.getString(
+                    GTaskStringUtils.GTASK_JSON_LIST_ID));
+            JSONObject task = new JSONObject();
+            task.put(GTaskStringUtils.GTASK_JSON_ID, gid);
+            task.put(GTaskStringUtils.GTASK_JSON_NAME, entity.getString(
+                    GTaskStringUtils.GTASK_JSON_NAME));
+            if (entity.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+                task.put(GTaskStringUtils.GTASK_JSON_NOTES, entity.getString(
+                        GTaskStringUtils.GTASK_JSON_NOTES));
+            }
+            task.put(GTaskStringUtils.GTASK_JSON_DELETED, false);
+            task.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, syncPoint);
+            task.put(GTaskStringUtils.GTASK_JSON_LIST_ID, action.getString(
+                    GTaskStringUtils.GTASK_JSON_LIST_ID));
+            insertTask(tasks, task, action.optString(
+                    GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null), action.optInt(
+                    GTaskStringUtils.GTASK_JSON_INDEX, tasks.size()));
+            mTasks.put(gid, task);
+            touchList(task, syncPoint);
+        } else {
+            throw new JSONException("unknown entity type: " + type);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, action.getInt(
+                GTaskStringUtils.GTASK_JSON_ACTION_ID));
+        result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, gid);
+        result.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, syncPoint);
+        return result;
+    }
+
+    private JSONObject update(JSONObject action) throws JSONException {
+        String gid = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        JSONObject target = mTasks.containsKey(gid) ? mTasks.get(gid) : mLists.get(gid);
+        if (target == null) {
+            throw new JSONException("no entity " + gid);
+        }
+        String[] fields = new String[] {
+                GTaskStringUtils.GTASK_JSON_NAME, GTaskStringUtils.GTASK_JSON_NOTES,
+                GTaskStringUtils.GTASK_JSON_DELETED, GTaskStringUtils.GTASK_JSON_COMPLETED
+        };
+        for (String field : fields) {
+            if (entity.has(field)) {
+                target.put(field, entity.get(field));
+            }
+        }
+        long syncPoint = nextSyncPoint();
+        target.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, syncPoint);
+        if (target != mLists.get(gid)) {
+            touchList(target, syncPoint);
+        }
+        return actionResult(action);
+    }
+
+    private JSONObject move(JSONObject action) throws JSONException {
+        String gid = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        JSONObject task = mTasks.get(gid);
+        if (task == null) {
+            throw new JSONException("no task " + gid);
+        }
+        String sourceGid = action.getString(GTaskStringUtils.GTASK_JSON_SOURCE_LIST);
+        String destGid = action.optString(GTaskStringUtils.GTASK_JSON_DEST_LIST, sourceGid);
+        getListTasks(sourceGid).remove(task);
+        insertTask(getListTasks(destGid), task, action.optString(
+                GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null), 0);
+        task.put(GTaskStringUtils.GTASK_JSON_LIST_ID, destGid);
+        long syncPoint = nextSyncPoint();
+        task.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, syncPoint);
+        mLists.get(sourceGid).put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, syncPoint);
+        touchList(task, syncPoint);
+        return actionResult(action);
+    }
+
+    /**
+     * A change of a task updates the last modified time of its list too
+     */
+    private void touchList(JSONObject task, long syncPoint) throws JSONException {
+        JSONObject list = mLists.get(task.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+        if (list != null) {
+            list.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, syncPoint);
+        }
+    }
+
+    /**
+     * All the tasks of the list, or only the ones changed after the sync point if it's set.
+     * The deleted tasks are left out unless they are asked for
+     */
+    private JSONArray getAll(JSONObject action, long syncPoint) throws JSONException {
+        boolean getDeleted = action.optBoolean(GTaskStringUtils.GTASK_JSON_GET_DELETED);
+        JSONArray jsTasks = new JSONArray();
+        for (JSONObject task : getListTasks(action.getString(
+                GTaskStringUtils.GTASK_JSON_LIST_ID))) {
+            if (task.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED) && !getDeleted) {
+                continue;
+            }
+            if (task.getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED) <= syncPoint) {
+                continue;
+            }
+            jsTasks.put(task);
+        }
+        return jsTasks;
+    }
+
+    private ArrayList<JSONObject> getListTasks(String listGid) throws JSONException {
+        ArrayList<JSONObject> tasks = mListTasks.get(listGid);
+        if (tasks == null) {
+            throw new JSONException("no task list " + listGid);
+        }
+        return tasks;
+    }
+
+    /**
+     * Put the task after its prior sibling, or at the index if it has none
+     */
+    private void insertTask(ArrayList<JSONObject> tasks, JSONObject task, String priorGid,
+            int index) {
+        if (priorGid != null) {
+            JSONObject prior = mTasks.get(priorGid);
+            int priorIndex = prior != null ? tasks.indexOf(prior) : -1;
+            if (priorIndex >= 0) {
+                tasks.add(priorIndex + 1, task);
+                return;
+            }
+        }
+        tasks.add(Math.max(0, Math.min(index, tasks.size())), task);
+    }
+
+    private JSONObject actionResult(JSONObject action) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, action.getInt(
+                GTaskStringUtils.GTASK_JSON_ACTION_ID));
+        return result;
+    }
+
+    /**
+     * The sync points are increasing times, so they can be the last modified times too
+     */
+    private long nextSyncPoint() {
+        mSyncPoint = Math.max(mSyncPoint + 1, System.currentTimeMillis());
+        return mSyncPoint;
+    }
+
+    public synchronized boolean hasCookie(String name) {
+        return mLoggedin && "GTL".contains(name);
+    }
+
+    public synchronized void clearCookies() {
+        mLoggedin = false;
+    }
+
+    public void setTimeouts(int connectTimeoutMs, int socketTimeoutMs) {
+        // answered in process, there is nothing to time out
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getRequestTime() {
+        return mRequestTime;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public synchronized long getParseTime() {
+        return mParseTime;
+    }
+
+    public synchronized void resetMetrics() {
+        mRequestCount = 0;
+        mRequestTime = 0;
+        mBytesSent = 0;
+        mBytesReceived = 0;
+        mParseTime = 0;
+    }
+}
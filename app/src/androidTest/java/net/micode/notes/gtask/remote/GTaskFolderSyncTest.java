@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Syncs hundreds of folders with {@link FakeGTaskServer}, renames some of the lists on the
+ * server and checks that the folders are matched to their lists by name without creating
+ * any list twice, also after the gids are dropped as on an account switch
+ */
+public class GTaskFolderSyncTest extends ProviderTestCase2<NotesProvider> {
+    private static final String ACCOUNT_NAME = "test@gmail.com";
+
+    private static final int FOLDER_COUNT = 300;
+
+    /**
+     * Every this many folders one is renamed on the server
+     */
+    private static final int RENAME_INTERVAL = 7;
+
+    private FakeGTaskServer mServer;
+
+    private Context mContext;
+
+    public GTaskFolderSyncTest() {
+        super(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new PreferenceRenamingContext(getMockContext());
+        SharedPreferences.Editor editor = mContext.getSharedPreferences(
+                NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE).edit();
+        editor.clear();
+        editor.putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT_NAME);
+        editor.commit();
+
+        mServer = new FakeGTaskServer();
+        GTaskClient.getInstance().setServer(mServer, new Account(ACCOUNT_NAME, "com.google"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        GTaskClient.getInstance().setServer(null, null);
+        super.tearDown();
+    }
+
+    public void testRenamedFolders() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+            values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+            values.put(NoteColumns.SNIPPET, folderName(i));
+            values.put(NoteColumns.CREATED_DATE, now);
+            values.put(NoteColumns.MODIFIED_DATE, now);
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            resolver.insert(Notes.CONTENT_NOTE_URI, values);
+        }
+
+        sync();
+        int listCount = mServer.getListCount();
+        assertTrue(listCount > FOLDER_COUNT);
+        assertNoDuplicateLists();
+
+        ArrayList<String> renamed = new ArrayList<String>();
+        for (int i = 0; i < FOLDER_COUNT; i += RENAME_INTERVAL) {
+            String name = "renamed " + folderName(i);
+            assertNotNull(mServer.renameList(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + folderName(i), GTaskStringUtils.MIUI_FOLDER_PREFFIX + name));
+            renamed.add(name);
+        }
+
+        sync();
+        assertEquals(listCount, mServer.getListCount());
+        assertNoDuplicateLists();
+        assertEquals(FOLDER_COUNT, countFolders(null));
+        for (String name : renamed) {
+            assertEquals(name, 1, countFolders(name));
+        }
+
+        // the folders lose their gids, they are matched to the lists by name again
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.GTASK_ID, "");
+        values.put(NoteColumns.SYNC_ID, 0);
+        resolver.update(Notes.CONTENT_NOTE_URI, values, null, null);
+        NotesPreferenceActivity.setLastSyncPoint(mContext, 0);
+        NotesPreferenceActivity.setLastFullSyncTime(mContext, 0);
+
+        sync();
+        assertEquals(listCount, mServer.getListCount());
+        assertNoDuplicateLists();
+        assertEquals(FOLDER_COUNT, countFolders(null));
+    }
+
+    private static String folderName(int index) {
+        return "folder " + index;
+    }
+
+    private void sync() {
+        assertEquals(GTaskManager.STATE_SUCCESS, GTaskManager.getInstance().sync(mContext,
+                null));
+    }
+
+    private void assertNoDuplicateLists() throws Exception {
+        HashSet<String> names = new HashSet<String>();
+        for (String name : mServer.getListNames()) {
+            assertTrue(name, names.add(name));
+        }
+    }
+
+    /**
+     * The folders of the user, only the ones of the name if it's not null
+     */
+    private int countFolders(String name) {
+        String selection = NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND "
+                + NoteColumns.ID + ">0";
+        String[] selectionArgs = null;
+        if (name != null) {
+            selection += " AND " + NoteColumns.SNIPPET + "=?";
+            selectionArgs = new String[] {
+                name
+            };
+        }
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, new String[] {
+            NoteColumns.ID
+        }, selection, selectionArgs, null);
+        assertNotNull(c);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logs how long {@link GTaskClient#getTaskLists(List, long, String)} takes to download the
+ * lists of {@link FakeGTaskServer} one by one and with parallel requests, with a
+ * round trip latency on each request. Only the client is used, the notes are not touched:
+ * adb shell am instrument -w -e class net.micode.notes.gtask.remote.GTaskParallelismBenchmark
+ * net.micode.notes.test/android.test.InstrumentationTestRunner
+ */
+public class GTaskParallelismBenchmark extends AndroidTestCase {
+    private static final String TAG = GTaskParallelismBenchmark.class.getSimpleName();
+
+    private static final int LIST_COUNT = 20;
+
+    private static final int TASKS_PER_LIST = 50;
+
+    private static final long LATENCY_MS = 50;
+
+    private FakeGTaskServer mServer;
+
+    private ArrayList<String> mListGids;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeGTaskServer();
+        mListGids = new ArrayList<String>();
+        for (int i = 0; i < LIST_COUNT; i++) {
+            String listGid = mServer.addList(GTaskStringUtils.MIUI_FOLDER_PREFFIX + "list " + i);
+            for (int j = 0; j < TASKS_PER_LIST; j++) {
+                mServer.addTask(listGid, "task " + j, "task " + j + " of list " + i);
+            }
+            mListGids.add(listGid);
+        }
+        mServer.setLatency(LATENCY_MS);
+
+        GTaskClient client = GTaskClient.getInstance();
+        client.setServer(mServer, new Account("benchmark@gmail.com", "com.google"));
+        assertTrue(client.login(getContext()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        GTaskClient client = GTaskClient.getInstance();
+        client.setParallelRequests(GTaskClient.DEFAULT_PARALLEL_REQUESTS);
+        client.setServer(null, null);
+        super.tearDown();
+    }
+
+    public void testParallelism() throws Exception {
+        long serial = download(1);
+        int[] parallelRequests = new int[] {
+                GTaskClient.DEFAULT_PARALLEL_REQUESTS, GTaskClient.MAX_PARALLEL_REQUESTS
+        };
+        for (int count : parallelRequests) {
+            long time = download(count);
+            Log.i(TAG, "speedup of " + count + " parallel requests: "
+                    + (serial * 100 / Math.max(time, 1)) / 100.0 + "x");
+        }
+    }
+
+    private long download(int parallelRequests) throws Exception {
+        GTaskClient client = GTaskClient.getInstance();
+        client.setParallelRequests(parallelRequests);
+        long start = System.currentTimeMillis();
+        List<List<Task>> lists = client.getTaskLists(mListGids, 0, null);
+        long time = System.currentTimeMillis() - start;
+
+        assertEquals(LIST_COUNT, lists.size());
+        for (List<Task> tasks : lists) {
+            assertEquals(TASKS_PER_LIST, tasks.size());
+        }
+        Log.i(TAG, parallelRequests + " parallel requests: " + LIST_COUNT + " lists in "
+                + time + "ms");
+        return time;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Runs {@link GTaskManager#sync} against {@link FakeGTaskServer} and logs the metrics of the
+ * first sync, a sync with nothing to do, a sync of 1% of the notes changed and the first
+ * download to an empty phone. The provider, its database and the preferences are the test's
+ * own, the notes of the app are not touched:
+ * adb shell am instrument -w -e class net.micode.notes.gtask.remote.GTaskSyncBenchmark
+ * net.micode.notes.test/android.test.InstrumentationTestRunner
+ */
+public class GTaskSyncBenchmark extends ProviderTestCase2<NotesProvider> {
+    private static final String TAG = GTaskSyncBenchmark.class.getSimpleName();
+
+    private static final String ACCOUNT_NAME = "benchmark@gmail.com";
+
+    private static final int FOLDER_COUNT = 10;
+
+    private static final int NOTES_PER_FOLDER = 100;
+
+    /**
+     * Lists and tasks made on the server by another client before the first sync
+     */
+    private static final int REMOTE_LIST_COUNT = 5;
+
+    private static final int TASKS_PER_REMOTE_LIST = 100;
+
+    /**
+     * Round trip of each request, like a phone on a good network
+     */
+    private static final long LATENCY_MS = 50;
+
+    private static final String USER_NOTES_SELECTION = NoteColumns.ID + ">0 AND "
+            + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM;
+
+    private FakeGTaskServer mServer;
+
+    private Context mContext;
+
+    public GTaskSyncBenchmark() {
+        super(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new PreferenceRenamingContext(getMockContext());
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit().clear().commit();
+        setSyncAccountName(ACCOUNT_NAME);
+        deleteLocalNotes();
+
+        mServer = new FakeGTaskServer();
+        GTaskClient.getInstance().setServer(mServer, new Account(ACCOUNT_NAME, "com.google"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        GTaskClient.getInstance().setServer(null, null);
+        deleteLocalNotes();
+        super.tearDown();
+    }
+
+    public void testSync() throws Exception {
+        int remoteCount = createRemoteTasks();
+        ArrayList<Long> noteIds = createLocalNotes();
+        int noteCount = noteIds.size();
+        mServer.setLatency(LATENCY_MS);
+
+        runSync("first sync");
+        assertTrue(mServer.getListCount() > FOLDER_COUNT + REMOTE_LIST_COUNT);
+        assertTrue(mServer.getTaskCount() >= noteCount + remoteCount);
+        assertEquals(noteCount + remoteCount, countLocalNotes(Notes.TYPE_NOTE));
+        assertEquals(0, countLocalChanges());
+
+        runSync("no change");
+        assertEquals(0, countLocalChanges());
+
+        // distinct notes, a draw with replacement could change one twice
+        Collections.shuffle(noteIds, new Random(0));
+        int changed = Math.max(1, noteCount / 100);
+        for (int i = 0; i < changed; i++) {
+            changeNote(noteIds.get(i), "changed " + i);
+        }
+        runSync("1% changed");
+        assertEquals(0, countLocalChanges());
+
+        // an empty phone gets all the notes back
+        deleteLocalNotes();
+        resetSyncState();
+        runSync("first download");
+        assertEquals(noteCount + remoteCount, countLocalNotes(Notes.TYPE_NOTE));
+        assertEquals(FOLDER_COUNT + REMOTE_LIST_COUNT, countLocalNotes(Notes.TYPE_FOLDER));
+    }
+
+    /**
+     * Log the metrics the sync has recorded, the db batches and operations included
+     */
+    private void runSync(String name) throws Exception {
+        long start = System.currentTimeMillis();
+        int state = GTaskManager.getInstance().sync(mContext, null);
+        long time = System.currentTimeMillis() - start;
+        assertEquals(name, GTaskManager.STATE_SUCCESS, state);
+
+        JSONArray history = new JSONArray(GTaskSyncMetrics.exportHistory(mContext));
+        assertTrue(history.length() > 0);
+        Log.i(TAG, name + ": " + time + "ms, "
+                + history.getJSONObject(history.length() - 1).toString());
+    }
+
+    /**
+     * The lists and tasks of another client, the count of the tasks is returned
+     */
+    private int createRemoteTasks() throws Exception {
+        for (int i = 0; i < REMOTE_LIST_COUNT; i++) {
+            String listGid = mServer.addList(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + "remote list " + i);
+            for (int j = 0; j < TASKS_PER_REMOTE_LIST; j++) {
+                mServer.addTask(listGid, "remote task " + j, "task " + j + " of remote list "
+                        + i);
+            }
+        }
+        return REMOTE_LIST_COUNT * TASKS_PER_REMOTE_LIST;
+    }
+
+    /**
+     * The folders and their notes, the ids of the notes are returned
+     */
+    private ArrayList<Long> createLocalNotes() {
+        ContentResolver resolver = mContext.getContentResolver();
+        ArrayList<Long> noteIds = new ArrayList<Long>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+            values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+            values.put(NoteColumns.SNIPPET, "folder " + i);
+            values.put(NoteColumns.CREATED_DATE, now);
+            values.put(NoteColumns.MODIFIED_DATE, now);
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            long folderId = ContentUris.parseId(resolver.insert(Notes.CONTENT_NOTE_URI,
+                    values));
+
+            for (int j = 0; j < NOTES_PER_FOLDER; j++) {
+                values.clear();
+                values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+                values.put(NoteColumns.PARENT_ID, folderId);
+                values.put(NoteColumns.CREATED_DATE, now);
+                values.put(NoteColumns.MODIFIED_DATE, now);
+                values.put(NoteColumns.LOCAL_MODIFIED, 1);
+                long noteId = ContentUris.parseId(resolver.insert(Notes.CONTENT_NOTE_URI,
+                        values));
+
+                values.clear();
+                values.put(DataColumns.NOTE_ID, noteId);
+                values.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+                values.put(DataColumns.CONTENT, "note " + j + " of folder " + i);
+                resolver.insert(Notes.CONTENT_DATA_URI, values);
+                noteIds.add(noteId);
+            }
+        }
+        return noteIds;
+    }
+
+    private void changeNote(long noteId, String content) {
+        ContentResolver resolver = mContext.getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, content);
+        resolver.update(Notes.CONTENT_DATA_URI, values, DataColumns.NOTE_ID + "=? AND "
+                + DataColumns.MIME_TYPE + "=?", new String[] {
+                String.valueOf(noteId), TextNote.CONTENT_ITEM_TYPE
+        });
+
+        values.clear();
+        values.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+    }
+
+    private void deleteLocalNotes() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "=" + Notes.TYPE_NOTE,
+                null);
+        resolver.delete(Notes.CONTENT_NOTE_URI, USER_NOTES_SELECTION, null);
+    }
+
+    private void resetSyncState() {
+        NotesPreferenceActivity.setLastSyncPoint(mContext, 0);
+        NotesPreferenceActivity.setLastFullSyncTime(mContext, 0);
+    }
+
+    private int countLocalNotes(int type) {
+        return count(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "=" + type + " AND "
+                + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER);
+    }
+
+    private int countLocalChanges() {
+        return count(Notes.CONTENT_NOTE_URI, NoteColumns.LOCAL_MODIFIED + "=1 AND "
+                + USER_NOTES_SELECTION);
+    }
+
+    private int count(Uri uri, String selection) {
+        Cursor c = mContext.getContentResolver().query(uri, new String[] {
+            NoteColumns.ID
+        }, selection, null, null);
+        assertNotNull(c);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private void setSyncAccountName(String name) {
+        SharedPreferences.Editor editor = mContext.getSharedPreferences(
+                NotesPreferenceActivity.PREFERENCE_NAME, Context.MODE_PRIVATE).edit();
+        editor.putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, name);
+        editor.commit();
+    }
+}
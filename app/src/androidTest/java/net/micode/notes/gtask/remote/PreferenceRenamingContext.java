@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+/**
+ * The isolated context of a provider test renames the databases and files but not the
+ * preferences, a sync run on it would overwrite the sync state of the app
+ */
+class PreferenceRenamingContext extends ContextWrapper {
+    private static final String PREFERENCE_PREFIX = "test.";
+
+    public PreferenceRenamingContext(Context base) {
+        super(base);
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return super.getSharedPreferences(PREFERENCE_PREFIX + name, mode);
+    }
+}
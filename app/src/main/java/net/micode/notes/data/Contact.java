@@ -17,18 +17,39 @@
 package net.micode.notes.data;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Contact {
-    private static HashMap<String, String> sContactCache;
     private static final String TAG = "Contact";
 
+    /**
+     * At most this many numbers are cached, the least recently used ones are evicted first
+     */
+    private static final int MAX_CACHE_SIZE = 256;
+
+    /**
+     * Cached names, including the numbers without contact, expire after this long
+     */
+    private static final long CACHE_TTL_MS = 10 * 60 * 1000;
+
+    /**
+     * Numbers looked up by one query of prefetching
+     */
+    private static final int PREFETCH_BATCH_SIZE = 50;
+
     private static final String CALLER_ID_SELECTION = "PHONE_NUMBERS_EQUAL(" + Phone.NUMBER
     + ",?) AND " + Data.MIMETYPE + "='" + Phone.CONTENT_ITEM_TYPE + "'"
     + " AND " + Data.RAW_CONTACT_ID + " IN "
@@ -36,13 +57,53 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
-    public static String getContact(Context context, String phoneNumber) {
-        if(sContactCache == null) {
-            sContactCache = new HashMap<String, String>();
+    private static final String CALLER_IDS_SELECTION = Data.MIMETYPE + "='"
+            + Phone.CONTENT_ITEM_TYPE + "'"
+            + " AND " + Data.RAW_CONTACT_ID + " IN "
+            + "(SELECT raw_contact_id "
+            + " FROM phone_lookup"
+            + " WHERE min_match IN (+))";
+
+    private static final Object sLock = new Object();
+
+    private static LinkedHashMap<String, CacheEntry> sContactCache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
+    private static long sHitCount;
+
+    private static long sMissCount;
+
+    private static ContentObserver sContactsObserver;
+
+    private static class CacheEntry {
+        /**
+         * null if no contact has the number
+         */
+        private String mName;
+
+        private long mTime;
+
+        private CacheEntry(String name, long time) {
+            mName = name;
+            mTime = time;
         }
+    }
 
-        if(sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
+    public static String getContact(Context context, String phoneNumber) {
+        registerContactsObserver(context);
+
+        synchronized (sLock) {
+            CacheEntry entry = getCacheEntry(phoneNumber);
+            if (entry != null) {
+                sHitCount++;
+                return entry.mName;
+            }
+            sMissCount++;
         }
 
         String selection = CALLER_ID_SELECTION.replace("+",
@@ -54,11 +115,14 @@ public class Contact {
                 new String[] { phoneNumber },
                 null);
 
-        if (cursor != null && cursor.moveToFirst()) {
+        String name = null;
+        if (cursor != null) {
             try {
-                String name = cursor.getString(0);
-                sContactCache.put(phoneNumber, name);
-                return name;
+                if (cursor.moveToFirst()) {
+                    name = cursor.getString(0);
+                } else {
+                    Log.d(TAG, "No contact matched with number:" + phoneNumber);
+                }
             } catch (IndexOutOfBoundsException e) {
                 Log.e(TAG, " Cursor get string error " + e.toString());
                 return null;
@@ -66,8 +130,130 @@ public class Contact {
                 cursor.close();
             }
         } else {
-            Log.d(TAG, "No contact matched with number:" + phoneNumber);
             return null;
         }
+
+        putCacheEntry(phoneNumber, name);
+        return name;
+    }
+
+    /**
+     * Look up the names of the numbers which are not cached yet with one query for each
+     * {@link #PREFETCH_BATCH_SIZE} numbers, it should not be called on the main thread
+     */
+    public static void prefetchContacts(Context context, Collection<String> phoneNumbers) {
+        registerContactsObserver(context);
+
+        ArrayList<String> numbers = new ArrayList<String>();
+        synchronized (sLock) {
+            for (String number : phoneNumbers) {
+                if (number != null && number.length() > 0 && !numbers.contains(number)
+                        && getCacheEntry(number) == null) {
+                    numbers.add(number);
+                }
+            }
+        }
+
+        for (int start = 0; start < numbers.size(); start += PREFETCH_BATCH_SIZE) {
+            prefetchBatch(context, numbers.subList(start,
+                    Math.min(start + PREFETCH_BATCH_SIZE, numbers.size())));
+        }
+    }
+
+    private static void prefetchBatch(Context context, List<String> numbers) {
+        StringBuilder minMatches = new StringBuilder();
+        for (String number : numbers) {
+            if (minMatches.length() > 0) {
+                minMatches.append(",");
+            }
+            minMatches.append(DatabaseUtils.sqlEscapeString(
+                    PhoneNumberUtils.toCallerIDMinMatch(number)));
+        }
+
+        Cursor cursor = context.getContentResolver().query(
+                Data.CONTENT_URI,
+                new String [] { Phone.NUMBER, Phone.DISPLAY_NAME },
+                CALLER_IDS_SELECTION.replace("+", minMatches.toString()),
+                null,
+                null);
+        if (cursor == null) {
+            Log.e(TAG, "Prefetch contacts failed");
+            return;
+        }
+
+        String[] names = new String[numbers.size()];
+        try {
+            while (cursor.moveToNext()) {
+                String contactNumber = cursor.getString(0);
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i] == null
+                            && PhoneNumberUtils.compare(numbers.get(i), contactNumber)) {
+                        names[i] = cursor.getString(1);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // the numbers without matched contact are cached too
+        for (int i = 0; i < names.length; i++) {
+            putCacheEntry(numbers.get(i), names[i]);
+        }
+    }
+
+    public static void invalidateCache() {
+        synchronized (sLock) {
+            sContactCache.clear();
+        }
+    }
+
+    public static long getHitCount() {
+        synchronized (sLock) {
+            return sHitCount;
+        }
+    }
+
+    public static long getMissCount() {
+        synchronized (sLock) {
+            return sMissCount;
+        }
+    }
+
+    /**
+     * Should be called with sLock held, the expired entry is removed
+     */
+    private static CacheEntry getCacheEntry(String phoneNumber) {
+        CacheEntry entry = sContactCache.get(phoneNumber);
+        if (entry != null && System.currentTimeMillis() - entry.mTime > CACHE_TTL_MS) {
+            sContactCache.remove(phoneNumber);
+            entry = null;
+        }
+        return entry;
+    }
+
+    private static void putCacheEntry(String phoneNumber, String name) {
+        synchronized (sLock) {
+            sContactCache.put(phoneNumber, new CacheEntry(name, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * The cached names are dropped whenever the contacts change
+     */
+    private static void registerContactsObserver(Context context) {
+        synchronized (sLock) {
+            if (sContactsObserver != null) {
+                return;
+            }
+            sContactsObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    invalidateCache();
+                }
+            };
+        }
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true, sContactsObserver);
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashSet;
+
+/**
+ * Collects the changed notes and datas and notifies the observers once for them. Changes made
+ * by a batch are notified when the batch ends, other changes are notified after a short window
+ * so a burst of single-row writes results in one notification.
+ */
+class NoteChangeDispatcher {
+    /**
+     * Changes made outside of a batch are held for this long before being notified
+     */
+    private static final long NOTIFY_WINDOW_MS = 100;
+
+    private ContentResolver mContentResolver;
+
+    private Handler mHandler;
+
+    private ThreadLocal<Changes> mBatchChanges;
+
+    private Changes mPendingChanges;
+
+    private boolean mFlushScheduled;
+
+    private Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private static class Changes {
+        private HashSet<Long> mNoteIds = new HashSet<Long>();
+
+        private HashSet<Long> mDataIds = new HashSet<Long>();
+
+        private boolean mAllNotes;
+
+        private boolean mAllDatas;
+
+        private boolean isEmpty() {
+            return !mAllNotes && !mAllDatas && mNoteIds.isEmpty() && mDataIds.isEmpty();
+        }
+    }
+
+    public NoteChangeDispatcher(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mHandler = new Handler(Looper.getMainLooper());
+        mBatchChanges = new ThreadLocal<Changes>();
+        mPendingChanges = new Changes();
+        mFlushScheduled = false;
+    }
+
+    /**
+     * Hold the changes made by current thread until {@link #endBatch()}
+     */
+    public void beginBatch() {
+        mBatchChanges.set(new Changes());
+    }
+
+    /**
+     * Notify the changes of the batch if they were committed, they are dropped if its
+     * transaction was rolled back
+     */
+    public void endBatch(boolean committed) {
+        Changes changes = mBatchChanges.get();
+        mBatchChanges.remove();
+        if (changes != null && committed) {
+            publish(changes);
+        }
+    }
+
+    public void noteChanged(long noteId) {
+        synchronized (this) {
+            getChanges().mNoteIds.add(noteId);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Notes changed but we don't know which ones
+     */
+    public void notesChanged() {
+        synchronized (this) {
+            getChanges().mAllNotes = true;
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * The data and the note it belongs to have changed, the noteId is 0 if unknown
+     */
+    public void dataChanged(long dataId, long noteId) {
+        synchronized (this) {
+            Changes changes = getChanges();
+            changes.mDataIds.add(dataId);
+            if (noteId > 0) {
+                changes.mNoteIds.add(noteId);
+            } else {
+                changes.mAllNotes = true;
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Datas changed but we don't know which ones
+     */
+    public void datasChanged() {
+        synchronized (this) {
+            Changes changes = getChanges();
+            changes.mAllDatas = true;
+            changes.mAllNotes = true;
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Notify the pending changes made outside of batches right now
+     */
+    public void flush() {
+        Changes changes;
+        synchronized (this) {
+            changes = mPendingChanges;
+            mPendingChanges = new Changes();
+            mFlushScheduled = false;
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+        publish(changes);
+    }
+
+    private Changes getChanges() {
+        Changes changes = mBatchChanges.get();
+        return changes != null ? changes : mPendingChanges;
+    }
+
+    private void scheduleFlush() {
+        if (mBatchChanges.get() == null && !mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, NOTIFY_WINDOW_MS);
+        }
+    }
+
+    /**
+     * A single changed row is notified with its item uri. Notifying the directory uri reaches
+     * every observer of the table and its items, so it is used once for many changed rows.
+     * The rows are not notified by the uri of their folder: the writes by selection don't
+     * tell which folders they touched, and the list of a folder also shows the counts of its
+     * subfolders, so the list observes the whole note uri anyway.
+     */
+    private void publish(Changes changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        publish(Notes.CONTENT_NOTE_URI, changes.mAllNotes, changes.mNoteIds);
+        publish(Notes.CONTENT_DATA_URI, changes.mAllDatas, changes.mDataIds);
+    }
+
+    private void publish(Uri dirUri, boolean all, HashSet<Long> ids) {
+        if (all || ids.size() > 1) {
+            mContentResolver.notifyChange(dirUri, null);
+        } else if (ids.size() == 1) {
+            mContentResolver.notifyChange(ContentUris.withAppendedId(dirUri,
+                    ids.iterator().next()), null);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Substring search over the notes' snippets with the full-text index. The index holds the
+ * trigrams of each word instead of the words, so the notes holding all the trigrams of the
+ * search string are found by the index, then they are checked with LIKE. The result is the
+ * same as a LIKE scan over all the notes.
+ */
+class NoteSearchIndex {
+    /**
+     * Column of the full-text table, it holds the trigrams of the note's snippet
+     */
+    public static final String COLUMN_GRAMS = "grams";
+
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * Terms of a MATCH expression at most, the candidates are checked by LIKE anyway
+     */
+    private static final int MAX_MATCH_TERMS = 16;
+
+    private static final String PENDING_NOTES_QUERY = "SELECT " + NoteColumns.ID + ","
+        + NoteColumns.SNIPPET + " FROM " + TABLE.NOTE
+        + " WHERE " + NoteColumns.ID + " IN (SELECT " + NoteColumns.ID
+        + " FROM " + TABLE.NOTE_FTS_PENDING + ")";
+
+    /**
+     * Index the notes queued by the triggers since the last call, in one transaction. It's
+     * called by the writes, in their transaction, so the searches only read the index
+     */
+    public static void refresh(SQLiteDatabase db) {
+        if (DatabaseUtils.queryNumEntries(db, TABLE.NOTE_FTS_PENDING) == 0) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE.NOTE_FTS
+                    + " WHERE docid=?");
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE.NOTE_FTS
+                    + "(docid," + COLUMN_GRAMS + ") VALUES(?,?)");
+            Cursor c = db.rawQuery(PENDING_NOTES_QUERY, null);
+            try {
+                while (c.moveToNext()) {
+                    delete.bindLong(1, c.getLong(0));
+                    delete.execute();
+                    insert.bindLong(1, c.getLong(0));
+                    insert.bindString(2, buildGrams(c.getString(1)));
+                    insert.executeInsert();
+                }
+            } finally {
+                c.close();
+                delete.close();
+                insert.close();
+            }
+            db.execSQL("DELETE FROM " + TABLE.NOTE_FTS_PENDING);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * The trigrams starting at every character of the text's words, separated by spaces. The
+     * words are split like sqlite's simple tokenizer does. The grams at the end of a word are
+     * shorter, so a search string shorter than a trigram is found as a prefix of them.
+     */
+    public static String buildGrams(String text) {
+        StringBuilder grams = new StringBuilder();
+        if (text == null) {
+            return "";
+        }
+        int[] codePoints = toCodePoints(text);
+        int start = 0;
+        while (start < codePoints.length) {
+            if (!isWordChar(codePoints[start])) {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < codePoints.length && isWordChar(codePoints[end])) {
+                end++;
+            }
+            for (int i = start; i < end; i++) {
+                if (grams.length() > 0) {
+                    grams.append(' ');
+                }
+                for (int j = i; j < Math.min(i + GRAM_LENGTH, end); j++) {
+                    grams.appendCodePoint(codePoints[j]);
+                }
+            }
+            start = end;
+        }
+        return grams.toString();
+    }
+
+    /**
+     * The MATCH expression of the notes which may hold the search string: every trigram of
+     * its words, or the words shorter than a trigram as prefixes. Returns null if the search
+     * string has no word characters, the notes can only be scanned then
+     */
+    public static String buildMatchString(String searchString) {
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        int[] codePoints = toCodePoints(searchString);
+        int start = 0;
+        while (start < codePoints.length) {
+            if (!isWordChar(codePoints[start])) {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < codePoints.length && isWordChar(codePoints[end])) {
+                end++;
+            }
+            if (end - start < GRAM_LENGTH) {
+                terms.add(toTerm(codePoints, start, end) + "*");
+            } else {
+                for (int i = start; i + GRAM_LENGTH <= end; i++) {
+                    terms.add(toTerm(codePoints, i, i + GRAM_LENGTH));
+                }
+            }
+            start = end;
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        int count = 0;
+        for (String term : terms) {
+            if (count == MAX_MATCH_TERMS) {
+                break;
+            }
+            if (count > 0) {
+                match.append(' ');
+            }
+            match.append(term);
+            count++;
+        }
+        return match.toString();
+    }
+
+    /**
+     * The ASCII letters are lowered, so the terms are not taken as the AND, OR, NOT and NEAR
+     * operators. The tokenizer folds their case anyway
+     */
+    private static String toTerm(int[] codePoints, int start, int end) {
+        StringBuilder term = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            int ch = codePoints[i];
+            term.appendCodePoint(ch >= 'A' && ch <= 'Z' ? ch + ('a' - 'A') : ch);
+        }
+        return term.toString();
+    }
+
+    /**
+     * The simple tokenizer takes the ASCII letters and digits and all the non-ASCII characters
+     * as the characters of words
+     */
+    private static boolean isWordChar(int ch) {
+        return ch >= 0x80 || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+                || (ch >= '0' && ch <= '9');
+    }
+
+    private static int[] toCodePoints(String text) {
+        int[] codePoints = new int[text.codePointCount(0, text.length())];
+        for (int i = 0, index = 0; i < text.length(); index++) {
+            codePoints[index] = text.codePointAt(i);
+            i += Character.charCount(codePoints[index]);
+        }
+        return codePoints;
+    }
+}
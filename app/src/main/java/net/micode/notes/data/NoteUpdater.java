@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Updates the notes and increases their version in one statement. The sql only depends on the
+ * updated columns and the selection, so the compiled statements are kept by their sql and a
+ * repeated update is only bound and executed. Each thread has its own statements since the
+ * bound arguments are held by the statement.
+ */
+class NoteUpdater {
+    private static final int MAX_STATEMENTS_PER_THREAD = 16;
+
+    private final SQLiteDatabase mDb;
+
+    private final ThreadLocal<StatementCache> mStatements = new ThreadLocal<StatementCache>() {
+        @Override
+        protected StatementCache initialValue() {
+            return new StatementCache();
+        }
+    };
+
+    private static class StatementCache extends LinkedHashMap<String, SQLiteStatement> {
+        private StatementCache() {
+            super(MAX_STATEMENTS_PER_THREAD, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+            if (size() > MAX_STATEMENTS_PER_THREAD) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    NoteUpdater(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    SQLiteDatabase getDatabase() {
+        return mDb;
+    }
+
+    int update(ContentValues values, String selection, String[] selectionArgs) {
+        int valuesCount = (values == null) ? 0 : values.size();
+        int argsCount = (selectionArgs == null) ? 0 : selectionArgs.length;
+        Object[] bindArgs = new Object[valuesCount + argsCount];
+        int i = 0;
+
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("UPDATE ");
+        sql.append(TABLE.NOTE);
+        sql.append(" SET ");
+        if (valuesCount > 0) {
+            for (String column : values.keySet()) {
+                sql.append(i > 0 ? "," : "");
+                sql.append(column);
+                sql.append("=?");
+                bindArgs[i++] = values.get(column);
+            }
+        }
+        if (valuesCount == 0 || !values.containsKey(NoteColumns.VERSION)) {
+            sql.append(i > 0 ? "," : "");
+            sql.append(NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1");
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ");
+            sql.append(selection);
+        }
+        for (int j = 0; j < argsCount; j++) {
+            bindArgs[i++] = selectionArgs[j];
+        }
+
+        StatementCache statements = mStatements.get();
+        String key = sql.toString();
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            statement = mDb.compileStatement(key);
+            statements.put(key, statement);
+        }
+        statement.clearBindings();
+        for (int j = 0; j < bindArgs.length; j++) {
+            DatabaseUtils.bindObjectToProgram(statement, j + 1, bindArgs[j]);
+        }
+        return statement.executeUpdateDelete();
+    }
+}
@@ -61,6 +61,52 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query the list of a folder, see {@link #PARAM_FOLDER}. Besides the note's columns,
+     * the rows could have {@link #LIST_COLUMN_PHONE_NUMBER}
+     */
+    public static final Uri CONTENT_NOTE_LIST_URI = Uri.parse("content://" + AUTHORITY + "/note_list");
+
+    /**
+     * Uri of the sync journal, see {@link SyncJournalColumns}. Its changes are not notified
+     */
+    public static final Uri CONTENT_SYNC_JOURNAL_URI = Uri.parse("content://" + AUTHORITY
+            + "/sync_journal");
+
+    /**
+     * Uri of the notes' text at last sync, see {@link SyncBaseColumns}. An insert replaces the
+     * note's row, the changes are not notified
+     */
+    public static final Uri CONTENT_SYNC_BASE_URI = Uri.parse("content://" + AUTHORITY
+            + "/sync_base");
+
+    /**
+     * Phone number of the call note in the list, empty for other notes
+     * <P> Type: TEXT </P>
+     */
+    public static final String LIST_COLUMN_PHONE_NUMBER = "phone_number";
+
+    /**
+     * Method for {@link android.content.ContentResolver#call} to checkpoint the write-ahead log
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * Method for {@link android.content.ContentResolver#call} to set the pages of write-ahead
+     * log to checkpoint automatically, the arg is the count of pages
+     */
+    public static final String METHOD_SET_AUTO_CHECKPOINT = "set_auto_checkpoint";
+
+    /**
+     * Query parameters of {@link #CONTENT_NOTE_LIST_URI}, the folder is required. The rows are
+     * ordered by type, modified date and id descending, the list could be loaded page by page
+     * with {@link #PARAM_LIMIT} and {@link #PARAM_AFTER}, which is the "type,modified_date,id"
+     * of the last row of the previous page
+     */
+    public static final String PARAM_FOLDER = "folder";
+    public static final String PARAM_AFTER = "after";
+    public static final String PARAM_LIMIT = "limit";
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -165,6 +211,14 @@ public class Notes {
          * <P> Type : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * Short preview of the snippet to be shown in the list, widgets and search suggestions.
+         * It's trimmed and bounded, with the check list marks removed. For folders, it's the
+         * same as the name in the snippet
+         * <P> Type : TEXT </P>
+         */
+        public static final String PREVIEW = "preview";
     }
 
     public interface DataColumns {
@@ -241,6 +295,62 @@ public class Notes {
         public static final String DATA5 = "data5";
     }
 
+    /**
+     * The remote changes of the notes acknowledged by the server during a sync. A row is
+     * removed when the sync finishes, the rows left by an interrupted sync are applied to the
+     * notes before the next sync, so the acknowledged changes are not sent again
+     */
+    public interface SyncJournalColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The note whose change is acknowledged
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * The gtask id of the note
+         * <P> Type: TEXT </P>
+         */
+        public static final String GTASK_ID = "gtask_id";
+
+        /**
+         * The last modified time of the task, 0 if unknown
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String SYNC_ID = "sync_id";
+
+        /**
+         * The note's modified date when it was sent, the note is not clean any more if it has
+         * been modified since
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String MODIFIED_DATE = "modified_date";
+    }
+
+    /**
+     * The text of a note when it was last synced, it's the base to merge the local and remote
+     * changes made since. The row is removed with the note
+     */
+    public interface SyncBaseColumns {
+        /**
+         * The note which the text belongs to
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * The synced text
+         * <P> Type: TEXT </P>
+         */
+        public static final String CONTENT = "content";
+    }
+
     public static final class TextNote implements DataColumns {
         /**
          * Mode to indicate the text in check list mode or not
@@ -18,29 +18,44 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SyncBaseColumns;
+import net.micode.notes.data.Notes.SyncJournalColumns;
 
 
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 10;
 
     public interface TABLE {
         public static final String NOTE = "note";
 
         public static final String DATA = "data";
+
+        public static final String NOTE_FTS = "note_fts";
+
+        public static final String NOTE_FTS_PENDING = "note_fts_pending";
+
+        public static final String SYNC_JOURNAL = "sync_journal";
+
+        public static final String SYNC_BASE = "sync_base";
     }
 
     private static final String TAG = "NotesDatabaseHelper";
 
-    private static NotesDatabaseHelper mInstance;
+    /**
+     * Pages in the write-ahead log before sqlite checkpoints it automatically
+     */
+    public static final int DEFAULT_AUTO_CHECKPOINT_PAGES = 1000;
 
     private static final String CREATE_NOTE_TABLE_SQL =
         "CREATE TABLE " + TABLE.NOTE + "(" +
@@ -60,7 +75,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.PREVIEW + " TEXT NOT NULL DEFAULT ''" +
         ")";
 
     private static final String CREATE_DATA_TABLE_SQL =
@@ -78,6 +94,75 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
         ")";
 
+    private static final String CREATE_SYNC_JOURNAL_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.SYNC_JOURNAL + "(" +
+            SyncJournalColumns.ID + " INTEGER PRIMARY KEY," +
+            SyncJournalColumns.NOTE_ID + " INTEGER NOT NULL," +
+            SyncJournalColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
+            SyncJournalColumns.SYNC_ID + " INTEGER NOT NULL DEFAULT 0," +
+            SyncJournalColumns.MODIFIED_DATE + " INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    private static final String CREATE_SYNC_BASE_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.SYNC_BASE + "(" +
+            SyncBaseColumns.NOTE_ID + " INTEGER PRIMARY KEY," +
+            SyncBaseColumns.CONTENT + " TEXT NOT NULL DEFAULT ''" +
+        ")";
+
+    /**
+     * Delete the synced text of the note when the note is deleted
+     */
+    private static final String NOTE_DELETE_SYNC_BASE_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_sync_base_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.SYNC_BASE +
+        "   WHERE " + SyncBaseColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Full-text index over the trigrams of note's snippet, the docid of each row is the note's
+     * id. See {@link NoteSearchIndex}
+     */
+    private static final String CREATE_NOTE_FTS_TABLE_SQL =
+        "CREATE VIRTUAL TABLE " + TABLE.NOTE_FTS + " USING fts4(" +
+            NoteSearchIndex.COLUMN_GRAMS +
+        ")";
+
+    /**
+     * Notes whose snippet is not indexed yet, the trigrams are built before the next search
+     */
+    private static final String CREATE_NOTE_FTS_PENDING_TABLE_SQL =
+        "CREATE TABLE " + TABLE.NOTE_FTS_PENDING + "(" +
+            NoteColumns.ID + " INTEGER PRIMARY KEY" +
+        ")";
+
+    /**
+     * Notes list of a folder, ordered by type and modified date
+     */
+    private static final String CREATE_NOTE_PARENT_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_id_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," + NoteColumns.MODIFIED_DATE + ");";
+
+    /**
+     * Folders list and notes of given type, ordered by modified date
+     */
+    private static final String CREATE_NOTE_TYPE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_type_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.TYPE + "," + NoteColumns.MODIFIED_DATE + ");";
+
+    private static final String CREATE_NOTE_ALERTED_DATE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_alert_date_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.ALERTED_DATE + ");";
+
+    private static final String CREATE_NOTE_WIDGET_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_widget_id_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.WIDGET_ID + ");";
+
+    private static final String CREATE_NOTE_GTASK_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_gtask_id_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.GTASK_ID + ");";
+
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
@@ -171,6 +256,70 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";
 
+    /**
+     * Max length of note's preview
+     */
+    public static final int PREVIEW_MAX_LENGTH = 128;
+
+    /**
+     * Update note's preview when insert note
+     */
+    private static final String NOTE_UPDATE_PREVIEW_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER update_note_preview_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.PREVIEW + "=" + buildPreview("new.") +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Update note's preview when note's snippet has changed
+     */
+    private static final String NOTE_UPDATE_PREVIEW_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_note_preview_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.PREVIEW + "=" + buildPreview("new.") +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Queue note's content to be indexed when insert note
+     */
+    private static final String NOTE_INSERT_FTS_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER insert_note_fts_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.NOTE_FTS_PENDING + "(" + NoteColumns.ID + ")" +
+        "   VALUES (new." + NoteColumns.ID + ");" +
+        " END";
+
+    /**
+     * Queue note's content to be re-indexed when note's snippet has changed
+     */
+    private static final String NOTE_UPDATE_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_note_fts_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.NOTE_FTS_PENDING + "(" + NoteColumns.ID + ")" +
+        "   VALUES (new." + NoteColumns.ID + ");" +
+        " END";
+
+    /**
+     * Remove note's content from index when note has been deleted
+     */
+    private static final String NOTE_DELETE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_note_fts_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + NoteColumns.ID + ";" +
+        "  DELETE FROM " + TABLE.NOTE_FTS_PENDING +
+        "   WHERE " + NoteColumns.ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
     /**
      * Delete datas belong to note which has been deleted
      */
@@ -207,16 +356,43 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " END";
 
     public NotesDatabaseHelper(Context context) {
-        super(context, DB_NAME, null, DB_VERSION);
+        this(context, DB_NAME);
+    }
+
+    /**
+     * The helper of another database file, the tests use it to keep away from the notes
+     */
+    NotesDatabaseHelper(Context context, String name) {
+        super(context, name, null, DB_VERSION);
+        // the framework then opens more connections for the queries, which read concurrently
+        // with the writer instead of waiting for its transaction
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
+        createNoteFtsTables(db);
         reCreateNoteTableTriggers(db);
+        createNoteTableIndexes(db);
         createSystemFolder(db);
         Log.d(TAG, "note table has been created");
     }
 
+    /**
+     * (Re)create the full-text index, all the existing notes are indexed
+     */
+    private void createNoteFtsTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.NOTE_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.NOTE_FTS_PENDING);
+        db.execSQL(CREATE_NOTE_FTS_TABLE_SQL);
+        db.execSQL(CREATE_NOTE_FTS_PENDING_TABLE_SQL);
+        db.execSQL("INSERT INTO " + TABLE.NOTE_FTS_PENDING + "(" + NoteColumns.ID + ")"
+                + " SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE);
+        NoteSearchIndex.refresh(db);
+    }
+
     private void reCreateNoteTableTriggers(SQLiteDatabase db) {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
@@ -225,6 +401,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS insert_note_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_note_fts_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_preview_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_preview_on_update");
 
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
@@ -233,6 +414,34 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
         db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+        db.execSQL(NOTE_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_UPDATE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_DELETE_FTS_ON_DELETE_TRIGGER);
+        db.execSQL(NOTE_UPDATE_PREVIEW_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_UPDATE_PREVIEW_ON_UPDATE_TRIGGER);
+    }
+
+    /**
+     * The sql expression of the preview of a note's snippet. The check list marks
+     * (\u221A and \u25A1) are removed, white spaces are trimmed, and the length is bounded by
+     * {@link #PREVIEW_MAX_LENGTH}. Folder's preview is its name.
+     *
+     * @param prefix prefix of the note's columns, such as "new."
+     */
+    private static String buildPreview(String prefix) {
+        String snippet = prefix + NoteColumns.SNIPPET;
+        return "CASE WHEN " + prefix + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+                + " THEN SUBSTR(TRIM(REPLACE(REPLACE(" + snippet + ",'\u221A',''),'\u25A1','')"
+                + ",' '||x'09'||x'0A'||x'0D'),1," + PREVIEW_MAX_LENGTH + ")"
+                + " ELSE " + snippet + " END";
+    }
+
+    private void createNoteTableIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_TYPE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_ALERTED_DATE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_GTASK_ID_INDEX_SQL);
     }
 
     private void createSystemFolder(SQLiteDatabase db) {
@@ -287,17 +496,56 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
 
-    static synchronized NotesDatabaseHelper getInstance(Context context) {
-        if (mInstance == null) {
-            mInstance = new NotesDatabaseHelper(context);
+    public void createSyncJournalTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_SYNC_JOURNAL_TABLE_SQL);
+        Log.d(TAG, "sync journal table has been created");
+    }
+
+    public void createSyncBaseTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_SYNC_BASE_TABLE_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS delete_sync_base_on_delete");
+        db.execSQL(NOTE_DELETE_SYNC_BASE_ON_DELETE_TRIGGER);
+        Log.d(TAG, "sync base table has been created");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * Set how many pages the write-ahead log could grow to before it is checkpointed
+     * automatically, 0 disables automatic checkpoints
+     */
+    public void setAutoCheckpoint(int pages) {
+        queryPragma("PRAGMA wal_autocheckpoint=" + pages);
+    }
+
+    /**
+     * Copy the content of write-ahead log back to the database file
+     */
+    public void checkpoint() {
+        queryPragma("PRAGMA wal_checkpoint");
+    }
+
+    private void queryPragma(String sql) {
+        Cursor c = getWritableDatabase().rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
         }
-        return mInstance;
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createSyncJournalTable(db);
+        createSyncBaseTable(db);
     }
 
     @Override
@@ -322,6 +570,36 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -359,4 +637,39 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    private void upgradeToV5(SQLiteDatabase db) {
+        // add the full-text index, the existing notes are indexed before the first search
+        createNoteFtsTables(db);
+        reCreateNoteTableTriggers(db);
+    }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        // add indexes for the list, alarm, widget and sync queries
+        createNoteTableIndexes(db);
+    }
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        // add a column for note's preview and fill it for the existing notes
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.PREVIEW
+                + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.PREVIEW + "=" + buildPreview(""));
+        reCreateNoteTableTriggers(db);
+    }
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        // add the journal of sync, nothing to fill
+        createSyncJournalTable(db);
+    }
+
+    private void upgradeToV9(SQLiteDatabase db) {
+        // add the synced text of notes, it's filled as the notes are synced
+        createSyncBaseTable(db);
+    }
+
+    private void upgradeToV10(SQLiteDatabase db) {
+        // index the trigrams of the notes instead of their words, for substring search
+        createNoteFtsTables(db);
+        reCreateNoteTableTriggers(db);
+    }
 }
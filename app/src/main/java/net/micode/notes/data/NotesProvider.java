@@ -19,21 +19,28 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.util.ArrayList;
+
 
 public class NotesProvider extends ContentProvider {
     private static final UriMatcher mMatcher;
@@ -42,6 +49,16 @@ public class NotesProvider extends ContentProvider {
 
     private static final String TAG = "NotesProvider";
 
+    /**
+     * For very large batches, give other threads a chance to access the database every
+     * this many operations
+     */
+    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+
+    private NoteChangeDispatcher mChangeDispatcher;
+
+    private NoteUpdater mNoteUpdater;
+
     private static final int URI_NOTE            = 1;
     private static final int URI_NOTE_ITEM       = 2;
     private static final int URI_DATA            = 3;
@@ -50,12 +67,21 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    private static final int URI_NOTE_LIST       = 7;
+
+    private static final int URI_SYNC_JOURNAL    = 8;
+
+    private static final int URI_SYNC_BASE       = 9;
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
         mMatcher.addURI(Notes.AUTHORITY, "note/#", URI_NOTE_ITEM);
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "note_list", URI_NOTE_LIST);
+        mMatcher.addURI(Notes.AUTHORITY, "sync_journal", URI_SYNC_JOURNAL);
+        mMatcher.addURI(Notes.AUTHORITY, "sync_base", URI_SYNC_BASE);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
@@ -67,21 +93,80 @@ public class NotesProvider extends ContentProvider {
      */
     private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
         + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+        + "TRIM(REPLACE(" + NoteColumns.PREVIEW + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+        + "TRIM(REPLACE(" + NoteColumns.PREVIEW + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
         + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+    private static final String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
         + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
         + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
+    /**
+     * offsets() returns four integers for every matched trigram, so the number of matches could
+     * be calculated by counting the spaces. Notes with more matches are ranked first.
+     */
+    private static final String NOTES_FTS_RANK = "(LENGTH(match_offsets)"
+        + " - LENGTH(REPLACE(match_offsets, ' ', '')) + 1) / 4";
+
+    /**
+     * The index finds the notes holding all the trigrams of the search string, LIKE keeps the
+     * ones holding the string itself
+     */
+    private static final String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+        + " FROM " + TABLE.NOTE + " JOIN "
+        + "(SELECT docid, offsets(" + TABLE.NOTE_FTS + ") AS match_offsets"
+        + " FROM " + TABLE.NOTE_FTS
+        + " WHERE " + TABLE.NOTE_FTS + " MATCH ?)"
+        + " ON " + NoteColumns.ID + "=docid"
+        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
+        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " ORDER BY " + NOTES_FTS_RANK + " DESC," + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * The call record folder is listed in the root folder when it has notes. It's selected by
+     * its own part of the union so both parts could walk the indexes in the page order.
+     */
+    private static final String CALL_RECORD_FOLDER_PAGE_SELECTION = NoteColumns.ID + "="
+        + Notes.ID_CALL_RECORD_FOLDER + " AND " + NoteColumns.NOTES_COUNT + ">0";
+
+    private static final String ROOT_FOLDER_PAGE_SELECTION = NoteColumns.TYPE + "<>"
+        + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?";
+
+    private static final String FOLDER_PAGE_SELECTION = NoteColumns.PARENT_ID + "=?";
+
+    /**
+     * The rows after the page key in the page order. The leading bound on type lets sqlite seek
+     * the index to the key instead of filtering the folder's rows with the ORs
+     */
+    private static final String FOLDER_PAGE_AFTER_SELECTION = " AND " + NoteColumns.TYPE + "<=?"
+        + " AND (" + NoteColumns.TYPE + "<?"
+        + " OR (" + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + "<?"
+        + " OR (" + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<?))))";
+
+    /**
+     * Only the notes in call record folder have phone numbers, it's selected with the note so
+     * the list needs no query for each call note
+     */
+    private static final String NOTE_LIST_PHONE_NUMBER = "CASE WHEN " + NoteColumns.PARENT_ID
+        + "=" + Notes.ID_CALL_RECORD_FOLDER + " THEN IFNULL((SELECT " + CallNote.PHONE_NUMBER
+        + " FROM " + TABLE.DATA
+        + " WHERE " + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID
+        + " AND " + DataColumns.MIME_TYPE + "='" + CallNote.CONTENT_ITEM_TYPE + "'"
+        + " LIMIT 1),'') ELSE '' END AS " + Notes.LIST_COLUMN_PHONE_NUMBER;
+
+    private static final String FOLDER_PAGE_ORDER = NoteColumns.TYPE + " DESC,"
+        + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
     @Override
     public boolean onCreate() {
-        mHelper = NotesDatabaseHelper.getInstance(getContext());
+        // not a process-wide helper, a provider created on a test context opens its database
+        mHelper = new NotesDatabaseHelper(getContext());
+        mChangeDispatcher = new NoteChangeDispatcher(getContext().getContentResolver());
         return true;
     }
 
@@ -89,8 +174,9 @@ public class NotesProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
         Cursor c = null;
-        SQLiteDatabase db = mHelper.getReadableDatabase();
+        SQLiteDatabase db = mHelper.getWritableDatabase();
         String id = null;
+        Uri notificationUri = uri;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
@@ -131,25 +217,197 @@ public class NotesProvider extends ContentProvider {
                 }
 
                 try {
+                    String matchString = NoteSearchIndex.buildMatchString(searchString);
                     searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    if (matchString != null) {
+                        c = db.rawQuery(NOTES_FTS_SEARCH_QUERY, new String[] {
+                                matchString, searchString
+                        });
+                    } else {
+                        c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
+                                new String[] { searchString });
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
                 break;
+            case URI_NOTE_LIST:
+                if (selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException(
+                            "do not specify sortOrder or selection with this query");
+                }
+                ArrayList<String> pageArgs = new ArrayList<String>();
+                c = db.rawQuery(buildFolderPageQuery(uri, projection, pageArgs),
+                        pageArgs.toArray(new String[pageArgs.size()]));
+                /**
+                 * The list changes with the notes and their datas, which are notified by note
+                 * uri. Only the first page is notified, the following ones are merged with it
+                 * and the list is reloaded once for a change
+                 */
+                notificationUri = TextUtils.isEmpty(uri.getQueryParameter(Notes.PARAM_AFTER))
+                        ? Notes.CONTENT_NOTE_URI : null;
+                break;
+            case URI_SYNC_JOURNAL:
+                c = db.query(TABLE.SYNC_JOURNAL, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
+            case URI_SYNC_BASE:
+                c = db.query(TABLE.SYNC_BASE, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
-        if (c != null) {
-            c.setNotificationUri(getContext().getContentResolver(), uri);
+        if (c != null && notificationUri != null) {
+            c.setNotificationUri(getContext().getContentResolver(), notificationUri);
         }
         return c;
     }
 
+    /**
+     * The sql of the folder's list or one page of it, see {@link Notes#PARAM_FOLDER}. Its
+     * arguments are added to args
+     */
+    static String buildFolderPageQuery(Uri uri, String[] projection, ArrayList<String> args) {
+        long folderId;
+        int limit = 0;
+        String[] after = null;
+        try {
+            folderId = Long.parseLong(uri.getQueryParameter(Notes.PARAM_FOLDER));
+            String limitParam = uri.getQueryParameter(Notes.PARAM_LIMIT);
+            if (limitParam != null) {
+                limit = Integer.parseInt(limitParam);
+                if (limit <= 0) {
+                    throw new IllegalArgumentException("Wrong page limit " + limit);
+                }
+            }
+            String afterParam = uri.getQueryParameter(Notes.PARAM_AFTER);
+            if (!TextUtils.isEmpty(afterParam)) {
+                String[] key = afterParam.split(",");
+                if (key.length != 3) {
+                    throw new IllegalArgumentException("Wrong page key " + afterParam);
+                }
+                String type = String.valueOf(Integer.parseInt(key[0]));
+                String modifiedDate = String.valueOf(Long.parseLong(key[1]));
+                String id = String.valueOf(Long.parseLong(key[2]));
+                after = new String[] {
+                        type, type, type, modifiedDate, modifiedDate, id
+                };
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong page uri " + uri);
+        }
+
+        String columns = buildPageColumns(projection);
+        String afterSelection = (after == null) ? "" : FOLDER_PAGE_AFTER_SELECTION;
+        StringBuilder sql = new StringBuilder();
+        if (folderId == Notes.ID_ROOT_FOLDER) {
+            sql.append("SELECT " + columns + " FROM " + TABLE.NOTE + " WHERE "
+                    + CALL_RECORD_FOLDER_PAGE_SELECTION + afterSelection + " UNION ALL ");
+            addPageKeyArgs(args, after);
+            sql.append("SELECT " + columns + " FROM " + TABLE.NOTE + " WHERE "
+                    + ROOT_FOLDER_PAGE_SELECTION + afterSelection);
+        } else {
+            sql.append("SELECT " + columns + " FROM " + TABLE.NOTE + " WHERE "
+                    + FOLDER_PAGE_SELECTION + afterSelection);
+        }
+        args.add(String.valueOf(folderId));
+        addPageKeyArgs(args, after);
+        sql.append(" ORDER BY " + FOLDER_PAGE_ORDER);
+        if (limit > 0) {
+            sql.append(" LIMIT " + limit);
+        }
+        return sql.toString();
+    }
+
+    private static void addPageKeyArgs(ArrayList<String> args, String[] after) {
+        if (after != null) {
+            for (String arg : after) {
+                args.add(arg);
+            }
+        }
+    }
+
+    /**
+     * The columns ordering the page must be selected for the union, they are appended to the
+     * projection if missing
+     */
+    private static String buildPageColumns(String[] projection) {
+        if (projection == null || projection.length == 0) {
+            return "*," + NOTE_LIST_PHONE_NUMBER;
+        }
+        ArrayList<String> columns = new ArrayList<String>();
+        for (String column : projection) {
+            columns.add(Notes.LIST_COLUMN_PHONE_NUMBER.equals(column) ? NOTE_LIST_PHONE_NUMBER
+                    : column);
+        }
+        String[] orderColumns = new String[] {
+                NoteColumns.TYPE, NoteColumns.MODIFIED_DATE, NoteColumns.ID
+        };
+        for (String column : orderColumns) {
+            if (!columns.contains(column)) {
+                columns.add(column);
+            }
+        }
+        return TextUtils.join(",", columns);
+    }
+
+    /**
+     * The writes run in a transaction which also indexes the changed notes for search, unless
+     * they are part of a batch, which indexes them once before it commits
+     */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (db.inTransaction()) {
+            return insertInTransaction(db, uri, values);
+        }
+        db.beginTransaction();
+        try {
+            Uri result = insertInTransaction(db, uri, values);
+            NoteSearchIndex.refresh(db);
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (db.inTransaction()) {
+            return deleteInTransaction(db, uri, selection, selectionArgs);
+        }
+        db.beginTransaction();
+        try {
+            int count = deleteInTransaction(db, uri, selection, selectionArgs);
+            NoteSearchIndex.refresh(db);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (db.inTransaction()) {
+            return updateInTransaction(db, uri, values, selection, selectionArgs);
+        }
+        db.beginTransaction();
+        try {
+            int count = updateInTransaction(db, uri, values, selection, selectionArgs);
+            NoteSearchIndex.refresh(db);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private Uri insertInTransaction(SQLiteDatabase db, Uri uri, ContentValues values) {
         long dataId = 0, noteId = 0, insertedId = 0;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
@@ -163,29 +421,34 @@ public class NotesProvider extends ContentProvider {
                 }
                 insertedId = dataId = db.insert(TABLE.DATA, null, values);
                 break;
+            case URI_SYNC_JOURNAL:
+                // the journal is only read by sync, nothing to notify
+                insertedId = db.insert(TABLE.SYNC_JOURNAL, null, values);
+                break;
+            case URI_SYNC_BASE:
+                // one row per note, the old text is replaced
+                insertedId = db.insertWithOnConflict(TABLE.SYNC_BASE, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
-        // Notify the note uri
-        if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
-        }
-
-        // Notify the data uri
+        // Notify the data uri and the note it belongs to
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            mChangeDispatcher.dataChanged(dataId, noteId);
+        } else if (noteId > 0) {
+            // Notify the note uri
+            mChangeDispatcher.noteChanged(noteId);
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
     }
 
-    @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
+    private int deleteInTransaction(SQLiteDatabase db, Uri uri, String selection,
+            String[] selectionArgs) {
         int count = 0;
         String id = null;
-        SQLiteDatabase db = mHelper.getWritableDatabase();
+        long noteId = 0, dataId = 0;
         boolean deleteData = false;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
@@ -198,7 +461,7 @@ public class NotesProvider extends ContentProvider {
                  * ID that smaller than 0 is system folder which is not allowed to
                  * trash
                  */
-                long noteId = Long.valueOf(id);
+                noteId = Long.valueOf(id);
                 if (noteId <= 0) {
                     break;
                 }
@@ -211,38 +474,41 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
+                dataId = Long.valueOf(id);
+                noteId = getNoteIdOfData(db, dataId);
                 count = db.delete(TABLE.DATA,
                         DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
                 deleteData = true;
                 break;
+            case URI_SYNC_JOURNAL:
+                return db.delete(TABLE.SYNC_JOURNAL, selection, selectionArgs);
+            case URI_SYNC_BASE:
+                return db.delete(TABLE.SYNC_BASE, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
-            if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
-            }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(deleteData, noteId, dataId);
         }
         return count;
     }
 
-    @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int updateInTransaction(SQLiteDatabase db, Uri uri, ContentValues values,
+            String selection, String[] selectionArgs) {
         int count = 0;
         String id = null;
-        SQLiteDatabase db = mHelper.getWritableDatabase();
+        long noteId = 0, dataId = 0;
         boolean updateData = false;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                count = getNoteUpdater(db).update(values, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                noteId = Long.valueOf(id);
+                // the id is bound, so the updates of all the notes share one statement
+                count = getNoteUpdater(db).update(values, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs));
                 break;
             case URI_DATA:
                 count = db.update(TABLE.DATA, values, selection, selectionArgs);
@@ -250,8 +516,12 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
+                dataId = Long.valueOf(id);
                 count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs);
+                if (count > 0) {
+                    noteId = getNoteIdOfData(db, dataId);
+                }
                 updateData = true;
                 break;
             default:
@@ -259,41 +529,143 @@ public class NotesProvider extends ContentProvider {
         }
 
         if (count > 0) {
-            if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
-            }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(updateData, noteId, dataId);
         }
         return count;
     }
 
-    private String parseSelection(String selection) {
-        return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+    /**
+     * Run all the operations in one transaction, so a batch costs only one commit. The
+     * notifications are collected during the batch and each changed uri is notified once
+     * after the transaction commits, nothing is notified if it is rolled back.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        // the operations before a yield are committed even if a later one fails
+        boolean committed = false;
+        beginBatch();
+        db.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && (operation.isYieldAllowed() || i % MAX_OPERATIONS_PER_YIELD_POINT == 0)) {
+                    committed |= db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            NoteSearchIndex.refresh(db);
+            db.setTransactionSuccessful();
+            committed = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            endBatch(committed);
+        }
     }
 
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
-        StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
-
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean committed = false;
+        beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && i % MAX_OPERATIONS_PER_YIELD_POINT == 0) {
+                    committed |= db.yieldIfContendedSafely();
+                }
+                insert(uri, values[i]);
+            }
+            NoteSearchIndex.refresh(db);
+            db.setTransactionSuccessful();
+            committed = true;
+            return values.length;
+        } finally {
+            db.endTransaction();
+            endBatch(committed);
         }
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_CHECKPOINT.equals(method)) {
+            mHelper.checkpoint();
+            return null;
+        } else if (Notes.METHOD_SET_AUTO_CHECKPOINT.equals(method)) {
+            try {
+                mHelper.setAutoCheckpoint(Integer.parseInt(arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Wrong checkpoint pages: " + arg);
+            }
+            return null;
         }
-        if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
+        return super.call(method, arg, extras);
+    }
+
+    private void beginBatch() {
+        mChangeDispatcher.beginBatch();
+    }
+
+    private void endBatch(boolean committed) {
+        mChangeDispatcher.endBatch(committed);
+    }
+
+    /**
+     * Report the change to the dispatcher, the ids are 0 if the change isn't made by item uri
+     */
+    private void notifyChange(boolean isData, long noteId, long dataId) {
+        if (isData) {
+            if (dataId > 0) {
+                mChangeDispatcher.dataChanged(dataId, noteId);
+            } else {
+                mChangeDispatcher.datasChanged();
+            }
+        } else {
+            if (noteId != 0) {
+                mChangeDispatcher.noteChanged(noteId);
+            } else {
+                mChangeDispatcher.notesChanged();
             }
-            sql.append(selectString);
         }
+    }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+    private long getNoteIdOfData(SQLiteDatabase db, long dataId) {
+        Cursor c = db.query(TABLE.DATA, new String[] { DataColumns.NOTE_ID },
+                DataColumns.ID + "=" + dataId, null, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String[] prependArg(String arg, String[] args) {
+        int count = (args == null) ? 0 : args.length;
+        String[] result = new String[count + 1];
+        result[0] = arg;
+        if (count > 0) {
+            System.arraycopy(args, 0, result, 1, count);
+        }
+        return result;
+    }
+
+    private String parseSelection(String selection) {
+        return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+    }
+
+    /**
+     * The updater of the notes for the current writable database, it's replaced if the
+     * database was reopened
+     */
+    private synchronized NoteUpdater getNoteUpdater(SQLiteDatabase db) {
+        if (mNoteUpdater == null || mNoteUpdater.getDatabase() != db) {
+            mNoteUpdater = new NoteUpdater(db);
+        }
+        return mNoteUpdater;
     }
 
     @Override
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * The ordered tasks of a task list. The order is kept by a treap keyed by position, so the
+ * positional insert, remove and index lookup take O(log n). The tasks are also looked up by
+ * task and by gid in O(1).
+ */
+class ChildTaskList {
+    private static class Entry {
+        private Task mTask;
+
+        private Entry mLeft;
+
+        private Entry mRight;
+
+        private Entry mParent;
+
+        private int mSize;
+
+        private int mPriority;
+
+        public Entry(Task task, int priority) {
+            mTask = task;
+            mSize = 1;
+            mPriority = priority;
+        }
+    }
+
+    private Entry mRoot;
+
+    private HashMap<Task, Entry> mEntries;
+
+    private HashMap<String, Task> mGidTasks;
+
+    /**
+     * The tasks added before they got their gids, they go to mGidTasks once they have
+     */
+    private HashSet<Task> mNoGidTasks;
+
+    private Random mRandom;
+
+    public ChildTaskList() {
+        mRoot = null;
+        mEntries = new HashMap<Task, Entry>();
+        mGidTasks = new HashMap<String, Task>();
+        mNoGidTasks = new HashSet<Task>();
+        mRandom = new Random();
+    }
+
+    public int size() {
+        return size(mRoot);
+    }
+
+    public boolean contains(Task task) {
+        return mEntries.containsKey(task);
+    }
+
+    public Task get(int index) {
+        Entry entry = mRoot;
+        while (entry != null) {
+            int leftSize = size(entry.mLeft);
+            if (index < leftSize) {
+                entry = entry.mLeft;
+            } else if (index == leftSize) {
+                return entry.mTask;
+            } else {
+                index -= leftSize + 1;
+                entry = entry.mRight;
+            }
+        }
+        throw new IndexOutOfBoundsException("invalid index " + index);
+    }
+
+    /**
+     * Returns -1 if the task is not in the list
+     */
+    public int indexOf(Task task) {
+        Entry entry = mEntries.get(task);
+        if (entry == null) {
+            return -1;
+        }
+        int index = size(entry.mLeft);
+        while (entry.mParent != null) {
+            if (entry == entry.mParent.mRight) {
+                index += size(entry.mParent.mLeft) + 1;
+            }
+            entry = entry.mParent;
+        }
+        return index;
+    }
+
+    public void add(int index, Task task) {
+        Entry entry = new Entry(task, mRandom.nextInt());
+        mEntries.put(task, entry);
+        if (task.getGid() != null) {
+            mGidTasks.put(task.getGid(), task);
+        } else {
+            mNoGidTasks.add(task);
+        }
+
+        Entry[] parts = split(mRoot, index);
+        mRoot = merge(merge(parts[0], entry), parts[1]);
+        mRoot.mParent = null;
+    }
+
+    public boolean remove(Task task) {
+        int index = indexOf(task);
+        if (index == -1) {
+            return false;
+        }
+        mEntries.remove(task);
+        if (task.getGid() != null && mGidTasks.get(task.getGid()) == task) {
+            mGidTasks.remove(task.getGid());
+        }
+        mNoGidTasks.remove(task);
+
+        Entry[] parts = split(mRoot, index);
+        Entry[] rest = split(parts[1], 1);
+        mRoot = merge(parts[0], rest[1]);
+        if (mRoot != null) {
+            mRoot.mParent = null;
+        }
+        return true;
+    }
+
+    public Task findByGid(String gid) {
+        if (gid == null) {
+            return null;
+        }
+        Task task = mGidTasks.get(gid);
+        if (task == null && !mNoGidTasks.isEmpty()) {
+            Iterator<Task> iter = mNoGidTasks.iterator();
+            while (iter.hasNext()) {
+                Task t = iter.next();
+                if (t.getGid() != null) {
+                    mGidTasks.put(t.getGid(), t);
+                    iter.remove();
+                }
+            }
+            task = mGidTasks.get(gid);
+        }
+        return task;
+    }
+
+    /**
+     * The tasks in order, it's a copy
+     */
+    public ArrayList<Task> toList() {
+        ArrayList<Task> list = new ArrayList<Task>(size());
+        collect(mRoot, list);
+        return list;
+    }
+
+    private static void collect(Entry entry, ArrayList<Task> list) {
+        while (entry != null) {
+            collect(entry.mLeft, list);
+            list.add(entry.mTask);
+            entry = entry.mRight;
+        }
+    }
+
+    private static int size(Entry entry) {
+        return entry == null ? 0 : entry.mSize;
+    }
+
+    private static void setLeft(Entry entry, Entry left) {
+        entry.mLeft = left;
+        if (left != null) {
+            left.mParent = entry;
+        }
+        entry.mSize = size(entry.mLeft) + size(entry.mRight) + 1;
+    }
+
+    private static void setRight(Entry entry, Entry right) {
+        entry.mRight = right;
+        if (right != null) {
+            right.mParent = entry;
+        }
+        entry.mSize = size(entry.mLeft) + size(entry.mRight) + 1;
+    }
+
+    /**
+     * Split the tree into the first count entries and the rest
+     */
+    private static Entry[] split(Entry entry, int count) {
+        if (entry == null) {
+            return new Entry[] {
+                    null, null
+            };
+        }
+        Entry[] parts;
+        if (count <= size(entry.mLeft)) {
+            parts = split(entry.mLeft, count);
+            setLeft(entry, parts[1]);
+            parts[1] = entry;
+        } else {
+            parts = split(entry.mRight, count - size(entry.mLeft) - 1);
+            setRight(entry, parts[0]);
+            parts[0] = entry;
+        }
+        if (parts[0] != null) {
+            parts[0].mParent = null;
+        }
+        if (parts[1] != null) {
+            parts[1].mParent = null;
+        }
+        return parts;
+    }
+
+    /**
+     * Join the trees, all the entries of left come first
+     */
+    private static Entry merge(Entry left, Entry right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.mPriority > right.mPriority) {
+            setRight(left, merge(left.mRight, right));
+            return left;
+        } else {
+            setLeft(right, merge(left, right.mLeft));
+            return right;
+        }
+    }
+}
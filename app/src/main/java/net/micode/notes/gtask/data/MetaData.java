@@ -36,7 +36,9 @@ public class MetaData extends Task {
         } catch (JSONException e) {
             Log.e(TAG, "failed to put related gid");
         }
-        setNotes(metaInfo.toString());
+        // the related gid is known, no need to parse the notes back
+        super.setNotes(metaInfo.toString());
+        mRelatedGid = gid;
         setName(GTaskStringUtils.META_NOTE_NAME);
     }
 
@@ -49,16 +51,19 @@ public class MetaData extends Task {
         return getNotes() != null;
     }
 
+    /**
+     * The notes of the meta data is the json of the note, the related gid is taken from it
+     */
     @Override
-    public void setContentByRemoteJSON(JSONObject js) {
-        super.setContentByRemoteJSON(js);
-        if (getNotes() != null) {
+    public void setNotes(String notes) {
+        super.setNotes(notes);
+        mRelatedGid = null;
+        if (notes != null) {
             try {
-                JSONObject metaInfo = new JSONObject(getNotes().trim());
+                JSONObject metaInfo = new JSONObject(notes.trim());
                 mRelatedGid = metaInfo.getString(GTaskStringUtils.META_HEAD_GTASK_ID);
             } catch (JSONException e) {
                 Log.w(TAG, "failed to get related gid");
-                mRelatedGid = null;
             }
         }
     }
@@ -16,12 +16,12 @@
 
 package net.micode.notes.gtask.data;
 
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -34,6 +34,8 @@ import net.micode.notes.gtask.exception.ActionFailureException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+
 
 public class SqlData {
     private static final String TAG = SqlData.class.getSimpleName();
@@ -55,8 +57,6 @@ public class SqlData {
 
     public static final int DATA_CONTENT_DATA_3_COLUMN = 4;
 
-    private ContentResolver mContentResolver;
-
     private boolean mIsCreate;
 
     private long mDataId;
@@ -71,8 +71,12 @@ public class SqlData {
 
     private ContentValues mDiffDataValues;
 
+    /**
+     * Index of the pending operation in the batch, -1 if there is none
+     */
+    private int mOperationIndex;
+
     public SqlData(Context context) {
-        mContentResolver = context.getContentResolver();
         mIsCreate = true;
         mDataId = INVALID_ID;
         mDataMimeType = DataConstants.NOTE;
@@ -80,13 +84,14 @@ public class SqlData {
         mDataContentData1 = 0;
         mDataContentData3 = "";
         mDiffDataValues = new ContentValues();
+        mOperationIndex = -1;
     }
 
     public SqlData(Context context, Cursor c) {
-        mContentResolver = context.getContentResolver();
         mIsCreate = false;
         loadFromCursor(c);
         mDiffDataValues = new ContentValues();
+        mOperationIndex = -1;
     }
 
     private void loadFromCursor(Cursor c) {
@@ -144,42 +149,71 @@ public class SqlData {
         return js;
     }
 
-    public void commit(long noteId, boolean validateVersion, long version) {
-
+    /**
+     * Add the operation writing the changes of the data. The note id is taken from the result
+     * of the operation at noteOperationIndex if it's not less than 0, which is how the data of
+     * a note created in the same batch gets its note id
+     */
+    void prepareCommit(ArrayList<ContentProviderOperation> operations, long noteId,
+            int noteOperationIndex, boolean validateVersion, long version) {
         if (mIsCreate) {
+            if (mOperationIndex >= 0) {
+                // already being inserted by the batch
+                return;
+            }
             if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
                 mDiffDataValues.remove(DataColumns.ID);
             }
 
-            mDiffDataValues.put(DataColumns.NOTE_ID, noteId);
-            Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, mDiffDataValues);
-            try {
-                mDataId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_DATA_URI).withValues(mDiffDataValues);
+            if (noteOperationIndex >= 0) {
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteOperationIndex);
+            } else {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
             }
+            mOperationIndex = operations.size();
+            operations.add(builder.build());
         } else {
             if (mDiffDataValues.size() > 0) {
-                int result = 0;
-                if (!validateVersion) {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues, null, null);
-                } else {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues,
-                            " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                                    + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
+                ContentProviderOperation.Builder builder = ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId)).withValues(
+                        mDiffDataValues);
+                if (validateVersion) {
+                    builder.withSelection(" ? in (SELECT " + NoteColumns.ID + " FROM "
+                            + TABLE.NOTE + " WHERE " + NoteColumns.VERSION + "=?)",
+                            new String[] {
                                     String.valueOf(noteId), String.valueOf(version)
                             });
                 }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
-                }
+                mOperationIndex = operations.size();
+                operations.add(builder.build());
             }
         }
-
         mDiffDataValues.clear();
+    }
+
+    /**
+     * Take the result of the operation added by {@link #prepareCommit}
+     */
+    void finishCommit(ContentProviderResult[] results) {
+        if (mOperationIndex < 0) {
+            mIsCreate = false;
+            return;
+        }
+
+        ContentProviderResult result = results[mOperationIndex];
+        if (mIsCreate) {
+            try {
+                mDataId = Long.valueOf(result.uri.getPathSegments().get(1));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Get note id error :" + e.toString());
+                throw new ActionFailureException("create note failed");
+            }
+        } else if (result.count != null && result.count == 0) {
+            Log.w(TAG, "there is no update. maybe user updates note when syncing");
+        }
+        mOperationIndex = -1;
         mIsCreate = false;
     }
 
@@ -17,16 +17,20 @@
 package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SyncBaseColumns;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.tool.ResourceParser;
@@ -122,6 +126,16 @@ public class SqlNote {
 
     private ArrayList<SqlData> mDataList;
 
+    /**
+     * Index of the pending note operation in the batch, -1 if there is none
+     */
+    private int mOperationIndex;
+
+    /**
+     * The synced text to be written with the note, null if it's not changed
+     */
+    private String mSyncBase;
+
     public SqlNote(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
@@ -141,6 +155,7 @@ public class SqlNote {
         mVersion = 0;
         mDiffNoteValues = new ContentValues();
         mDataList = new ArrayList<SqlData>();
+        mOperationIndex = -1;
     }
 
     public SqlNote(Context context, Cursor c) {
@@ -152,6 +167,7 @@ public class SqlNote {
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
+        mOperationIndex = -1;
     }
 
     public SqlNote(Context context, long id) {
@@ -163,7 +179,7 @@ public class SqlNote {
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
-
+        mOperationIndex = -1;
     }
 
     private void loadFromCursor(long id) {
@@ -420,10 +436,24 @@ public class SqlNote {
         mDiffNoteValues.put(NoteColumns.SYNC_ID, syncId);
     }
 
+    /**
+     * Set the text which both the note and its task have, it's written with the note
+     */
+    public void setSyncBase(String text) {
+        mSyncBase = text;
+    }
+
     public void resetLocalModified() {
         mDiffNoteValues.put(NoteColumns.LOCAL_MODIFIED, 0);
     }
 
+    /**
+     * The note is sent by the next sync, e.g. it's created by the sync itself
+     */
+    public void setLocalModified() {
+        mDiffNoteValues.put(NoteColumns.LOCAL_MODIFIED, 1);
+    }
+
     public long getId() {
         return mId;
     }
@@ -432,6 +462,10 @@ public class SqlNote {
         return mParentId;
     }
 
+    public long getModifiedDate() {
+        return mModifiedDate;
+    }
+
     public String getSnippet() {
         return mSnippet;
     }
@@ -441,25 +475,58 @@ public class SqlNote {
     }
 
     public void commit(boolean validateVersion) {
+        commit(validateVersion, false);
+    }
+
+    /**
+     * Write the note and its data in one batch. The in-memory content is what has been
+     * written, so it's read back from the database only if reload is true
+     */
+    public void commit(boolean validateVersion, boolean reload) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        prepareCommit(operations, validateVersion);
+        ContentProviderResult[] results = null;
+        if (operations.size() > 0) {
+            try {
+                results = mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+            } catch (RemoteException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                throw new ActionFailureException("commit note failed");
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                throw new ActionFailureException("commit note failed");
+            }
+        }
+        finishCommit(results);
+
+        if (reload) {
+            loadFromCursor(mId);
+            if (mType == Notes.TYPE_NOTE)
+                loadDataContent();
+        }
+    }
+
+    /**
+     * Add the operations writing the changes of the note and its data to the batch, the
+     * results must be passed to {@link #finishCommit} once the batch is applied
+     */
+    void prepareCommit(ArrayList<ContentProviderOperation> operations, boolean validateVersion) {
+        if (mIsCreate && mOperationIndex >= 0) {
+            throw new IllegalStateException("the note is being created by the batch");
+        }
+
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
             }
 
-            Uri uri = mContentResolver.insert(Notes.CONTENT_NOTE_URI, mDiffNoteValues);
-            try {
-                mId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
-            }
-            if (mId == 0) {
-                throw new IllegalStateException("Create thread id failed");
-            }
+            mOperationIndex = operations.size();
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(mDiffNoteValues).build());
 
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, false, -1);
+                    sqlData.prepareCommit(operations, 0, mOperationIndex, false, -1);
                 }
             }
         } else {
@@ -469,37 +536,71 @@ public class SqlNote {
             }
             if (mDiffNoteValues.size() > 0) {
                 mVersion ++;
-                int result = 0;
+                ContentProviderOperation.Builder builder = ContentProviderOperation.newUpdate(
+                        Notes.CONTENT_NOTE_URI).withValues(mDiffNoteValues);
                 if (!validateVersion) {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?)", new String[] {
+                    builder.withSelection("(" + NoteColumns.ID + "=?)", new String[] {
                         String.valueOf(mId)
                     });
                 } else {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
-                            new String[] {
+                    builder.withSelection("(" + NoteColumns.ID + "=?) AND ("
+                            + NoteColumns.VERSION + "<=?)", new String[] {
                                     String.valueOf(mId), String.valueOf(mVersion)
                             });
                 }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
-                }
+                mOperationIndex = operations.size();
+                operations.add(builder.build());
             }
 
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, validateVersion, mVersion);
+                    sqlData.prepareCommit(operations, mId, -1, validateVersion, mVersion);
                 }
             }
         }
 
-        // refresh local info
-        loadFromCursor(mId);
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
-
+        if (mSyncBase != null) {
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_SYNC_BASE_URI)
+                    .withValue(SyncBaseColumns.CONTENT, mSyncBase);
+            if (mIsCreate) {
+                builder.withValueBackReference(SyncBaseColumns.NOTE_ID, mOperationIndex);
+            } else {
+                builder.withValue(SyncBaseColumns.NOTE_ID, mId);
+            }
+            operations.add(builder.build());
+            mSyncBase = null;
+        }
         mDiffNoteValues.clear();
+    }
+
+    /**
+     * Take the results of the operations added by {@link #prepareCommit}
+     */
+    void finishCommit(ContentProviderResult[] results) {
+        if (mOperationIndex >= 0) {
+            ContentProviderResult result = results[mOperationIndex];
+            if (mIsCreate) {
+                try {
+                    mId = Long.valueOf(result.uri.getPathSegments().get(1));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Get note id error :" + e.toString());
+                    throw new ActionFailureException("create note failed");
+                }
+                if (mId == 0) {
+                    throw new IllegalStateException("Create thread id failed");
+                }
+            } else if (result.count != null && result.count == 0) {
+                Log.w(TAG, "there is no update. maybe user updates note when syncing");
+            }
+        }
+
+        if (mType == Notes.TYPE_NOTE) {
+            for (SqlData sqlData : mDataList) {
+                sqlData.finishCommit(results);
+            }
+        }
+        mOperationIndex = -1;
         mIsCreate = false;
     }
 }
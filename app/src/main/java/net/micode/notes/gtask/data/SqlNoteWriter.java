@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the changes of many notes and writes them in one transactional batch. The notes
+ * created in the batch get their ids when it's applied, then the listeners are called.
+ */
+public class SqlNoteWriter {
+    private static final String TAG = SqlNoteWriter.class.getSimpleName();
+
+    /**
+     * The batch is applied once it has this many operations
+     */
+    private static final int MAX_OPERATIONS = 200;
+
+    private ContentResolver mContentResolver;
+
+    private ArrayList<ContentProviderOperation> mOperations;
+
+    private ArrayList<SqlNote> mNotes;
+
+    private ArrayList<OnCommittedListener> mListeners;
+
+    private int mBatchCount;
+
+    private int mOperationCount;
+
+    public interface OnCommittedListener {
+        /**
+         * Called when the note has been written, its id is available from here
+         */
+        void onCommitted(SqlNote note) throws NetworkFailureException;
+    }
+
+    public SqlNoteWriter(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mNotes = new ArrayList<SqlNote>();
+        mListeners = new ArrayList<OnCommittedListener>();
+        mBatchCount = 0;
+        mOperationCount = 0;
+    }
+
+    /**
+     * Queue the changes of the note, the listener can be null. A note being created can't be
+     * queued again before the batch is applied
+     */
+    public void add(SqlNote note, boolean validateVersion, OnCommittedListener listener)
+            throws NetworkFailureException {
+        note.prepareCommit(mOperations, validateVersion);
+        mNotes.add(note);
+        mListeners.add(listener);
+        if (mOperations.size() >= MAX_OPERATIONS) {
+            flush();
+        }
+    }
+
+    /**
+     * Apply the queued changes, including the ones queued by the listeners meanwhile
+     */
+    public void flush() throws NetworkFailureException {
+        while (!mNotes.isEmpty()) {
+            ArrayList<ContentProviderOperation> operations = mOperations;
+            ArrayList<SqlNote> notes = mNotes;
+            ArrayList<OnCommittedListener> listeners = mListeners;
+            mOperations = new ArrayList<ContentProviderOperation>();
+            mNotes = new ArrayList<SqlNote>();
+            mListeners = new ArrayList<OnCommittedListener>();
+
+            ContentProviderResult[] results = null;
+            if (operations.size() > 0) {
+                try {
+                    results = mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+                    mBatchCount++;
+                    mOperationCount += operations.size();
+                } catch (RemoteException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                    throw new ActionFailureException("failed to write synced notes");
+                } catch (OperationApplicationException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                    throw new ActionFailureException("failed to write synced notes");
+                }
+            }
+
+            for (SqlNote note : notes) {
+                note.finishCommit(results);
+            }
+            for (int i = 0; i < notes.size(); i++) {
+                if (listeners.get(i) != null) {
+                    listeners.get(i).onCommitted(notes.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Batches applied so far
+     */
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * Operations applied so far, in all the batches
+     */
+    public int getOperationCount() {
+        return mOperationCount;
+    }
+
+    /**
+     * Drop the queued changes, e.g. when the sync is cancelled
+     */
+    public void clear() {
+        mOperations.clear();
+        mNotes.clear();
+        mListeners.clear();
+    }
+}
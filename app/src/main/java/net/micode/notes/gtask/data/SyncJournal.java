@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SyncJournalColumns;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the remote changes of the notes acknowledged by the server until the sync finishes.
+ * If the sync is interrupted before the notes are written, the journal is applied to them
+ * before the next sync, so the changes are not sent again.
+ */
+public class SyncJournal {
+    private static final String TAG = SyncJournal.class.getSimpleName();
+
+    private static final String[] PROJECTION = new String[] {
+            SyncJournalColumns.NOTE_ID, SyncJournalColumns.GTASK_ID, SyncJournalColumns.SYNC_ID,
+            SyncJournalColumns.MODIFIED_DATE
+    };
+
+    private static final int NOTE_ID_COLUMN = 0;
+
+    private static final int GTASK_ID_COLUMN = 1;
+
+    private static final int SYNC_ID_COLUMN = 2;
+
+    private static final int MODIFIED_DATE_COLUMN = 3;
+
+    private ContentResolver mContentResolver;
+
+    private ArrayList<ContentValues> mRows;
+
+    public SyncJournal(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mRows = new ArrayList<ContentValues>();
+    }
+
+    /**
+     * Queue the acknowledged change of the note, the sync id is 0 if it's unknown
+     */
+    public void add(long noteId, String gid, long syncId, long modifiedDate) {
+        ContentValues values = new ContentValues();
+        values.put(SyncJournalColumns.NOTE_ID, noteId);
+        values.put(SyncJournalColumns.GTASK_ID, gid);
+        values.put(SyncJournalColumns.SYNC_ID, syncId);
+        values.put(SyncJournalColumns.MODIFIED_DATE, modifiedDate);
+        mRows.add(values);
+    }
+
+    /**
+     * Write the queued rows in one transaction
+     */
+    public void flush() {
+        if (mRows.isEmpty()) {
+            return;
+        }
+        mContentResolver.bulkInsert(Notes.CONTENT_SYNC_JOURNAL_URI,
+                mRows.toArray(new ContentValues[mRows.size()]));
+        mRows.clear();
+    }
+
+    /**
+     * Apply the rows left by an interrupted sync to the notes and remove them, all in one
+     * transaction. A note is marked as not modified only if it has the sync id and hasn't been
+     * modified since it was sent. Returns the count of the operations of the batch, 0 if there
+     * was nothing to recover
+     */
+    public int recover() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        Cursor c = mContentResolver.query(Notes.CONTENT_SYNC_JOURNAL_URI, PROJECTION, null, null,
+                SyncJournalColumns.ID);
+        if (c == null) {
+            Log.w(TAG, "failed to query sync journal");
+            return 0;
+        }
+        int count = 0;
+        try {
+            while (c.moveToNext()) {
+                long syncId = c.getLong(SYNC_ID_COLUMN);
+                Uri uri = ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
+                        c.getLong(NOTE_ID_COLUMN));
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(uri)
+                        .withValue(NoteColumns.GTASK_ID, c.getString(GTASK_ID_COLUMN));
+                if (syncId > 0) {
+                    builder.withValue(NoteColumns.SYNC_ID, syncId);
+                }
+                operations.add(builder.build());
+                if (syncId > 0) {
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(NoteColumns.LOCAL_MODIFIED, 0)
+                            .withSelection(NoteColumns.MODIFIED_DATE + "=?", new String[] {
+                                String.valueOf(c.getLong(MODIFIED_DATE_COLUMN))
+                            }).build());
+                }
+                count++;
+            }
+        } finally {
+            c.close();
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        operations.add(ContentProviderOperation.newDelete(Notes.CONTENT_SYNC_JOURNAL_URI).build());
+        try {
+            mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to recover sync journal");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to recover sync journal");
+        }
+        Log.i(TAG, "recovered " + count + " notes of interrupted sync");
+        return operations.size();
+    }
+
+    /**
+     * Remove all the rows, the notes have been written
+     */
+    public void clear() {
+        mRows.clear();
+        mContentResolver.delete(Notes.CONTENT_SYNC_JOURNAL_URI, null, null);
+    }
+}
@@ -35,11 +35,11 @@ public class TaskList extends Node {
 
     private int mIndex;
 
-    private ArrayList<Task> mChildren;
+    private ChildTaskList mChildren;
 
     public TaskList() {
         super();
-        mChildren = new ArrayList<Task>();
+        mChildren = new ChildTaskList();
         mIndex = 1;
     }
 
@@ -223,13 +223,12 @@ public class TaskList extends Node {
     public boolean addChildTask(Task task) {
         boolean ret = false;
         if (task != null && !mChildren.contains(task)) {
-            ret = mChildren.add(task);
-            if (ret) {
-                // need to set prior sibling and parent
-                task.setPriorSibling(mChildren.isEmpty() ? null : mChildren
-                        .get(mChildren.size() - 1));
-                task.setParent(this);
-            }
+            // need to set prior sibling and parent
+            int size = mChildren.size();
+            task.setPriorSibling(size == 0 ? null : mChildren.get(size - 1));
+            task.setParent(this);
+            mChildren.add(size, task);
+            ret = true;
         }
         return ret;
     }
@@ -240,8 +239,7 @@ public class TaskList extends Node {
             return false;
         }
 
-        int pos = mChildren.indexOf(task);
-        if (task != null && pos == -1) {
+        if (task != null && !mChildren.contains(task)) {
             mChildren.add(index, task);
 
             // update the task list
@@ -253,6 +251,7 @@ public class TaskList extends Node {
                 afterTask = mChildren.get(index + 1);
 
             task.setPriorSibling(preTask);
+            task.setParent(this);
             if (afterTask != null)
                 afterTask.setPriorSibling(task);
         }
@@ -300,13 +299,7 @@ public class TaskList extends Node {
     }
 
     public Task findChildTaskByGid(String gid) {
-        for (int i = 0; i < mChildren.size(); i++) {
-            Task t = mChildren.get(i);
-            if (t.getGid().equals(gid)) {
-                return t;
-            }
-        }
-        return null;
+        return mChildren.findByGid(gid);
     }
 
     public int getChildTaskIndex(Task task) {
@@ -322,15 +315,14 @@ public class TaskList extends Node {
     }
 
     public Task getChilTaskByGid(String gid) {
-        for (Task task : mChildren) {
-            if (task.getGid().equals(gid))
-                return task;
-        }
-        return null;
+        return mChildren.findByGid(gid);
     }
 
+    /**
+     * The child tasks in order, changing the returned list doesn't change the task list
+     */
     public ArrayList<Task> getChildTaskList() {
-        return this.mChildren;
+        return mChildren.toList();
     }
 
     public void setIndex(int index) {
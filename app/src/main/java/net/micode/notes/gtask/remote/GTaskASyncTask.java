@@ -45,8 +45,15 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
 
     private OnCompleteListener mOnCompleteListener;
 
-    public GTaskASyncTask(Context context, OnCompleteListener listener) {
+    /**
+     * The sync is started by the app, only the errors its retries can't fix are notified,
+     * without ticker
+     */
+    private boolean mBackground;
+
+    public GTaskASyncTask(Context context, boolean background, OnCompleteListener listener) {
         mContext = context;
+        mBackground = background;
         mOnCompleteListener = listener;
         mNotifiManager = (NotificationManager) mContext
                 .getSystemService(Context.NOTIFICATION_SERVICE);
@@ -64,8 +71,8 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
     }
 
     private void showNotification(int tickerId, String content) {
-        Notification notification = new Notification(R.drawable.notification, mContext
-                .getString(tickerId), System.currentTimeMillis());
+        Notification notification = new Notification(R.drawable.notification,
+                mBackground ? null : mContext.getString(tickerId), System.currentTimeMillis());
         notification.defaults = Notification.DEFAULT_LIGHTS;
         notification.flags = Notification.FLAG_AUTO_CANCEL;
         PendingIntent pendingIntent;
@@ -91,7 +98,9 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
 
     @Override
     protected void onProgressUpdate(String... progress) {
-        showNotification(R.string.ticker_syncing, progress[0]);
+        if (!mBackground) {
+            showNotification(R.string.ticker_syncing, progress[0]);
+        }
         if (mContext instanceof GTaskSyncService) {
             ((GTaskSyncService) mContext).sendBroadcast(progress[0]);
         }
@@ -100,17 +109,26 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
     @Override
     protected void onPostExecute(Integer result) {
         if (result == GTaskManager.STATE_SUCCESS) {
-            showNotification(R.string.ticker_success, mContext.getString(
-                    R.string.success_sync_account, mTaskManager.getSyncAccount()));
+            if (!mBackground) {
+                showNotification(R.string.ticker_success, mContext.getString(
+                        R.string.success_sync_account, mTaskManager.getSyncAccount()));
+            }
             NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis());
         } else if (result == GTaskManager.STATE_NETWORK_ERROR) {
-            showNotification(R.string.ticker_fail, mContext.getString(R.string.error_sync_network));
+            // the background syncs are retried
+            if (!mBackground) {
+                showNotification(R.string.ticker_fail, mContext
+                        .getString(R.string.error_sync_network));
+            }
         } else if (result == GTaskManager.STATE_INTERNAL_ERROR) {
             showNotification(R.string.ticker_fail, mContext.getString(R.string.error_sync_internal));
         } else if (result == GTaskManager.STATE_SYNC_CANCELLED) {
-            showNotification(R.string.ticker_cancel, mContext
-                    .getString(R.string.error_sync_cancelled));
+            if (!mBackground) {
+                showNotification(R.string.ticker_cancel, mContext
+                        .getString(R.string.error_sync_cancelled));
+            }
         }
+        GTaskSyncScheduler.getInstance(mContext).onSyncFinished(result);
         if (mOnCompleteListener != null) {
             new Thread(new Runnable() {
 
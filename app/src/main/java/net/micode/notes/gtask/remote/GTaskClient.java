@@ -20,6 +20,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
+import android.content.Context;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -32,33 +33,21 @@ import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class GTaskClient {
@@ -70,14 +59,56 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    /**
+     * Size of the connection pool, no more requests than this can be in flight at once
+     */
+    public static final int MAX_PARALLEL_REQUESTS = 8;
+
+    public static final int DEFAULT_PARALLEL_REQUESTS = 4;
+
+    /**
+     * Create actions sent in one request at most
+     */
+    private static final int MAX_CREATE_ACTIONS = 20;
+
+    /**
+     * The update batch starts at this many actions and adapts to the server's latency between
+     * 1 and MAX_UPDATE_ACTIONS
+     */
+    private static final int DEFAULT_UPDATE_ACTIONS = 10;
+
+    private static final int MAX_UPDATE_ACTIONS = 200;
+
+    /**
+     * Bytes of the update actions sent in one request at most
+     */
+    private static final int MAX_UPDATE_BYTES = 64 * 1024;
+
+    /**
+     * The update batch grows while the commits take less than half of this and shrinks when
+     * they take longer
+     */
+    private static final long TARGET_COMMIT_TIME_MS = 3000;
+
+    /**
+     * Times a failed update batch is split and sent again in one commit
+     */
+    private static final int MAX_UPDATE_RETRIES = 2;
+
     private static GTaskClient mInstance = null;
 
-    private DefaultHttpClient mHttpClient;
+    private GTaskTransport mTransport;
 
     private String mGetUrl;
 
     private String mPostUrl;
 
+    /**
+     * The account of the server set by {@link #setServer(GTaskTransport, Account)}, null when
+     * syncing with google
+     */
+    private Account mServerAccount;
+
     private long mClientVersion;
 
     private boolean mLoggedin;
@@ -88,18 +119,78 @@ public class GTaskClient {
 
     private Account mAccount;
 
-    private JSONArray mUpdateArray;
+    /**
+     * The queued updates, moves and deletes. They are sent in order, so the ones on the same
+     * node don't need to be sent one by one
+     */
+    private ArrayList<JSONObject> mUpdateActions;
+
+    /**
+     * The nodes of the actions in mUpdateActions, in the same order
+     */
+    private ArrayList<Node> mUpdateNodes;
+
+    private int mUpdateBytes;
+
+    private int mMaxUpdateActions;
+
+    /**
+     * The nodes waiting to be created and the listeners to call when they get their gids
+     */
+    private ArrayList<Node> mCreateNodes;
+
+    private ArrayList<OnNodeCreatedListener> mCreateListeners;
+
+    private OnNodesCommittedListener mCommittedListener;
+
+    private long mLatestSyncPoint;
+
+    private int mParallelRequests;
+
+    private int mCommitCount;
+
+    private long mCommitTime;
+
+    private int mCommitDepth;
+
+    public interface OnNodeCreatedListener {
+        /**
+         * Called when the node has got its gid, the operations depending on the gid should be
+         * done here
+         */
+        void onNodeCreated(Node node) throws NetworkFailureException;
+    }
+
+    public interface OnNodesCommittedListener {
+        /**
+         * Called as soon as the server has acknowledged the creates, updates or moves of the
+         * nodes, before anything else is done with the results
+         */
+        void onNodesCommitted(List<Node> nodes);
+    }
 
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = new HttpGTaskTransport(MAX_PARALLEL_REQUESTS);
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
+        mServerAccount = null;
         mClientVersion = -1;
         mLoggedin = false;
         mLastLoginTime = 0;
         mActionId = 1;
         mAccount = null;
-        mUpdateArray = null;
+        mUpdateActions = new ArrayList<JSONObject>();
+        mUpdateNodes = new ArrayList<Node>();
+        mUpdateBytes = 0;
+        mMaxUpdateActions = DEFAULT_UPDATE_ACTIONS;
+        mCreateNodes = new ArrayList<Node>();
+        mCreateListeners = new ArrayList<OnNodeCreatedListener>();
+        mCommittedListener = null;
+        mLatestSyncPoint = 0;
+        mParallelRequests = DEFAULT_PARALLEL_REQUESTS;
+        mCommitCount = 0;
+        mCommitTime = 0;
+        mCommitDepth = 0;
     }
 
     public static synchronized GTaskClient getInstance() {
@@ -109,7 +200,10 @@ public class GTaskClient {
         return mInstance;
     }
 
-    public boolean login(Activity activity) {
+    /**
+     * The context is an activity if the user can be asked to confirm the account
+     */
+    public boolean login(Context context) {
         // we suppose that the cookie would expire after 5 minutes
         // then we need to re-login
         final long interval = 1000 * 60 * 5;
@@ -120,7 +214,7 @@ public class GTaskClient {
         // need to re-login after account switch
         if (mLoggedin
                 && !TextUtils.equals(getSyncAccount().name, NotesPreferenceActivity
-                        .getSyncAccountName(activity))) {
+                        .getSyncAccountName(context))) {
             mLoggedin = false;
         }
 
@@ -130,7 +224,21 @@ public class GTaskClient {
         }
 
         mLastLoginTime = System.currentTimeMillis();
-        String authToken = loginGoogleAccount(activity, false);
+
+        // the server set instead of google needs no auth token
+        if (mServerAccount != null) {
+            mAccount = mServerAccount;
+            mGetUrl = GTASK_GET_URL;
+            mPostUrl = GTASK_POST_URL;
+            if (!loginGtask("")) {
+                Log.e(TAG, "login server failed");
+                return false;
+            }
+            mLoggedin = true;
+            return true;
+        }
+
+        String authToken = loginGoogleAccount(context, false);
         if (authToken == null) {
             Log.e(TAG, "login google account failed");
             return false;
@@ -146,7 +254,7 @@ public class GTaskClient {
             mGetUrl = url.toString() + "ig";
             mPostUrl = url.toString() + "r/ig";
 
-            if (tryToLoginGtask(activity, authToken)) {
+            if (tryToLoginGtask(context, authToken)) {
                 mLoggedin = true;
             }
         }
@@ -155,7 +263,7 @@ public class GTaskClient {
         if (!mLoggedin) {
             mGetUrl = GTASK_GET_URL;
             mPostUrl = GTASK_POST_URL;
-            if (!tryToLoginGtask(activity, authToken)) {
+            if (!tryToLoginGtask(context, authToken)) {
                 return false;
             }
         }
@@ -164,9 +272,9 @@ public class GTaskClient {
         return true;
     }
 
-    private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
+    private String loginGoogleAccount(Context context, boolean invalidateToken) {
         String authToken;
-        AccountManager accountManager = AccountManager.get(activity);
+        AccountManager accountManager = AccountManager.get(context);
         Account[] accounts = accountManager.getAccountsByType("com.google");
 
         if (accounts.length == 0) {
@@ -174,7 +282,7 @@ public class GTaskClient {
             return null;
         }
 
-        String accountName = NotesPreferenceActivity.getSyncAccountName(activity);
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
         Account account = null;
         for (Account a : accounts) {
             if (a.name.equals(accountName)) {
@@ -189,7 +297,8 @@ public class GTaskClient {
             return null;
         }
 
-        // get the token now
+        // get the token now, without an activity the token is null if it needs confirming
+        Activity activity = context instanceof Activity ? (Activity) context : null;
         AccountManagerFuture<Bundle> accountManagerFuture = accountManager.getAuthToken(account,
                 "goanna_mobile", null, activity, null, null);
         try {
@@ -197,7 +306,7 @@ public class GTaskClient {
             authToken = authTokenBundle.getString(AccountManager.KEY_AUTHTOKEN);
             if (invalidateToken) {
                 accountManager.invalidateAuthToken("com.google", authToken);
-                loginGoogleAccount(activity, false);
+                loginGoogleAccount(context, false);
             }
         } catch (Exception e) {
             Log.e(TAG, "get auth token failed");
@@ -207,11 +316,11 @@ public class GTaskClient {
         return authToken;
     }
 
-    private boolean tryToLoginGtask(Activity activity, String authToken) {
+    private boolean tryToLoginGtask(Context context, String authToken) {
         if (!loginGtask(authToken)) {
             // maybe the auth token is out of date, now let's invalidate the
             // token and try again
-            authToken = loginGoogleAccount(activity, true);
+            authToken = loginGoogleAccount(context, true);
             if (authToken == null) {
                 Log.e(TAG, "login google account failed");
                 return false;
@@ -226,46 +335,20 @@ public class GTaskClient {
     }
 
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // the connections are kept, only the cookies of last login are dropped
+        mTransport.clearCookies();
 
         // login gtask
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
-            HttpGet httpGet = new HttpGet(loginUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            JSONObject js = mTransport.get(loginUrl, GTaskResponseReader.SETUP_PAGE);
 
             // get the cookie now
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
-            boolean hasAuthCookie = false;
-            for (Cookie cookie : cookies) {
-                if (cookie.getName().contains("GTL")) {
-                    hasAuthCookie = true;
-                }
-            }
-            if (!hasAuthCookie) {
+            if (!mTransport.hasCookie("GTL")) {
                 Log.w(TAG, "it seems that there is no auth cookie");
             }
 
             // get the client version
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
             mClientVersion = js.getLong("v");
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -280,67 +363,37 @@ public class GTaskClient {
         return true;
     }
 
-    private int getActionId() {
+    private synchronized int getActionId() {
         return mActionId++;
     }
 
-    private HttpPost createHttpPost() {
-        HttpPost httpPost = new HttpPost(mPostUrl);
-        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
-        httpPost.setHeader("AT", "1");
-        return httpPost;
+    private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+        return postRequest(js, GTaskResponseReader.RESPONSE);
     }
 
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null;
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue();
-            Log.d(TAG, "encoding: " + contentEncoding);
-        }
-
-        InputStream input = entity.getContent();
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
-        }
-
-        try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
-
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
-                }
-                sb = sb.append(buff);
-            }
-        } finally {
-            input.close();
+    private JSONObject postRequest(JSONObject js, GTaskResponseReader reader)
+            throws NetworkFailureException {
+        JSONObject jsResponse = executePost(js, reader);
+        if (jsResponse.has(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT)) {
+            updateLatestSyncPoint(jsResponse.optLong(
+                    GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT));
         }
+        return jsResponse;
     }
 
-    private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+    /**
+     * The response is parsed by the parser while it's received
+     */
+    private <T> T executePost(JSONObject js, GTaskTransport.ResponseParser<T> parser)
+            throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
-        HttpPost httpPost = createHttpPost();
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
-
             // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
-
+            return mTransport.post(mPostUrl, "r", js.toString(), parser);
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -378,6 +431,8 @@ public class GTaskClient {
             JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
                     GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
             task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+            setLastModified(task, jsResult);
+            notifyNodesCommitted(Collections.<Node> singletonList(task));
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -404,6 +459,8 @@ public class GTaskClient {
             JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
                     GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
             tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+            setLastModified(tasklist, jsResult);
+            notifyNodesCommitted(Collections.<Node> singletonList(tasklist));
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -412,50 +469,215 @@ public class GTaskClient {
         }
     }
 
+    /**
+     * Queue the node to be created together with others in one request. The task's list should
+     * have been created, the listener can be null
+     */
+    public void addCreateNode(Node node, OnNodeCreatedListener listener)
+            throws NetworkFailureException {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof Task && ((Task) node).getParent() != null
+                && ((Task) node).getParent().getGid() == null) {
+            commitCreate();
+        }
+        if (mCreateNodes.size() >= MAX_CREATE_ACTIONS) {
+            commitCreate();
+        }
+        mCreateNodes.add(node);
+        mCreateListeners.add(listener);
+    }
+
+    /**
+     * Create the queued nodes, including the ones queued by the listeners meanwhile
+     */
+    public void commitCreate() throws NetworkFailureException {
+        while (!mCreateNodes.isEmpty()) {
+            ArrayList<Node> nodes = mCreateNodes;
+            ArrayList<OnNodeCreatedListener> listeners = mCreateListeners;
+            mCreateNodes = new ArrayList<Node>();
+            mCreateListeners = new ArrayList<OnNodeCreatedListener>();
+
+            postCreateActions(nodes);
+            for (int i = 0; i < nodes.size(); i++) {
+                if (listeners.get(i) != null) {
+                    listeners.get(i).onNodeCreated(nodes.get(i));
+                }
+            }
+        }
+    }
+
+    private void postCreateActions(ArrayList<Node> nodes) throws NetworkFailureException {
+        try {
+            JSONObject jsPost = new JSONObject();
+            JSONArray actionList = new JSONArray();
+            HashMap<Integer, Node> actionNodes = new HashMap<Integer, Node>();
+
+            // action_list, a task whose prior sibling is created in the same request is placed
+            // by its index only
+            for (Node node : nodes) {
+                int actionId = getActionId();
+                actionList.put(node.getCreateAction(actionId));
+                actionNodes.put(actionId, node);
+            }
+            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+
+            // client_version
+            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+
+            // post, the results are in the order of the actions unless they have action ids
+            JSONObject jsResponse = postRequest(jsPost);
+            JSONArray jsResults = jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+            for (int i = 0; i < jsResults.length(); i++) {
+                JSONObject jsResult = jsResults.getJSONObject(i);
+                Node node = jsResult.has(GTaskStringUtils.GTASK_JSON_ACTION_ID) ? actionNodes
+                        .get(jsResult.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID))
+                        : (i < nodes.size() ? nodes.get(i) : null);
+                if (node != null && jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                    node.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+                    setLastModified(node, jsResult);
+                }
+            }
+
+            for (Node node : nodes) {
+                if (node.getGid() == null) {
+                    Log.e(TAG, "no new id for node " + node.getName());
+                    throw new ActionFailureException("create nodes: new id missed");
+                }
+            }
+            notifyNodesCommitted(nodes);
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("create nodes: handing jsonobject failed");
+        }
+    }
+
     public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
+        // the listeners of the created nodes may commit again, only the outer call is timed
+        if (mCommitDepth > 0) {
+            commitPending();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        mCommitDepth++;
+        try {
+            commitPending();
+        } finally {
+            mCommitDepth--;
+            mCommitCount++;
+            mCommitTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    private void commitPending() throws NetworkFailureException {
+        // the updates may depend on the gids of the created nodes
+        commitCreate();
+        if (mUpdateActions.isEmpty()) {
+            return;
+        }
+        ArrayList<JSONObject> actions = mUpdateActions;
+        ArrayList<Node> nodes = mUpdateNodes;
+        mUpdateActions = new ArrayList<JSONObject>();
+        mUpdateNodes = new ArrayList<Node>();
+        mUpdateBytes = 0;
+
+        // the actions are idempotent, a batch which failed is sent again in smaller ones
+        int retries = 0;
+        int from = 0;
+        while (from < actions.size()) {
+            int to = Math.min(actions.size(), from + mMaxUpdateActions);
+            long start = System.currentTimeMillis();
             try {
-                JSONObject jsPost = new JSONObject();
+                postUpdateActions(actions.subList(from, to), nodes.subList(from, to));
+            } catch (NetworkFailureException e) {
+                if (to - from == 1 || retries >= MAX_UPDATE_RETRIES) {
+                    throw e;
+                }
+                retries++;
+                mMaxUpdateActions = Math.max(1, (to - from) / 2);
+                Log.w(TAG, "update batch of " + (to - from) + " failed, retry with "
+                        + mMaxUpdateActions);
+                continue;
+            }
+            adaptUpdateBatch(to - from, System.currentTimeMillis() - start);
+            from = to;
+        }
+    }
+
+    private void postUpdateActions(List<JSONObject> actions, List<Node> nodes)
+            throws NetworkFailureException {
+        try {
+            JSONObject jsPost = new JSONObject();
 
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
+            // action_list
+            JSONArray actionList = new JSONArray();
+            for (JSONObject action : actions) {
+                actionList.put(action);
+            }
+            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+            // client_version
+            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-                postRequest(jsPost);
-                mUpdateArray = null;
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
+            JSONObject jsResponse = postRequest(jsPost);
+            JSONArray jsResults = jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+            for (int i = 0; i < nodes.size(); i++) {
+                setLastModified(nodes.get(i), jsResults != null ? jsResults.optJSONObject(i)
+                        : null);
             }
+            notifyNodesCommitted(new ArrayList<Node>(nodes));
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("commit update: handing jsonobject failed");
+        }
+    }
+
+    /**
+     * Grow the batch while the server answers full batches fast, shrink it when it's slow
+     */
+    private void adaptUpdateBatch(int actionCount, long time) {
+        if (time > TARGET_COMMIT_TIME_MS) {
+            mMaxUpdateActions = Math.max(1, mMaxUpdateActions / 2);
+        } else if (time < TARGET_COMMIT_TIME_MS / 2 && actionCount >= mMaxUpdateActions) {
+            mMaxUpdateActions = Math.min(MAX_UPDATE_ACTIONS, mMaxUpdateActions * 2);
         }
     }
 
+    /**
+     * Queue the action of the node, the queued actions are sent once there are as many as the
+     * batch size or their size would go over MAX_UPDATE_BYTES
+     */
+    private void addUpdateAction(JSONObject action, Node node) throws NetworkFailureException {
+        int bytes = action.toString().length();
+        if (!mUpdateActions.isEmpty() && (mUpdateActions.size() >= mMaxUpdateActions
+                || mUpdateBytes + bytes > MAX_UPDATE_BYTES)) {
+            commitUpdate();
+        }
+        mUpdateActions.add(action);
+        mUpdateNodes.add(node);
+        mUpdateBytes += bytes;
+    }
+
     public void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
-            }
-
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+            addUpdateAction(node.getUpdateAction(getActionId()), node);
         }
     }
 
+    /**
+     * The move is queued with the updates, it's sent by {@link #commitUpdate()}
+     */
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate();
+        // the lists and the prior sibling may be waiting to be created
+        commitCreate();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
 
-            // action_list
+            // move action
             action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
                     GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
             action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
@@ -471,14 +693,7 @@ public class GTaskClient {
                 // put the dest_list only if moving between tasklists
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
             }
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
-
+            addUpdateAction(action, task);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -486,27 +701,12 @@ public class GTaskClient {
         }
     }
 
+    /**
+     * The delete is queued with the updates, it's sent by {@link #commitUpdate()}
+     */
     public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
-            mUpdateArray = null;
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
-        }
+        node.setDeleted(true);
+        addUpdateNode(node);
     }
 
     public JSONArray getTaskLists() throws NetworkFailureException {
@@ -516,21 +716,8 @@ public class GTaskClient {
         }
 
         try {
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
-
             // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
+            JSONObject js = mTransport.get(mGetUrl, GTaskResponseReader.SETUP_PAGE);
             return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
@@ -547,8 +734,74 @@ public class GTaskClient {
         }
     }
 
-    public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+    public List<Task> getTaskList(String listGid) throws NetworkFailureException {
+        return getTaskList(listGid, 0);
+    }
+
+    /**
+     * Get the tasks of the list which have been changed since the sync point, including the
+     * deleted ones. All the tasks are returned if the sync point is 0
+     */
+    public List<Task> getTaskList(String listGid, long syncPoint) throws NetworkFailureException {
         commitUpdate();
+        return fetchTaskList(listGid, syncPoint, false);
+    }
+
+    /**
+     * Same as {@link #getTaskList(String, long)} for each of the lists, at most
+     * {@link #setParallelRequests(int)} lists are downloaded at once. The tasks of the meta
+     * list are read as {@link net.micode.notes.gtask.data.MetaData}, the meta list gid may be
+     * null. The pending updates are committed first, the result is in the same order as the
+     * list gids
+     */
+    public List<List<Task>> getTaskLists(List<String> listGids, final long syncPoint,
+            final String metaListGid) throws NetworkFailureException {
+        commitUpdate();
+
+        List<List<Task>> result = new ArrayList<List<Task>>(listGids.size());
+        if (listGids.size() <= 1 || mParallelRequests == 1) {
+            for (String listGid : listGids) {
+                result.add(fetchTaskList(listGid, syncPoint, listGid.equals(metaListGid)));
+            }
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mParallelRequests,
+                listGids.size()));
+        try {
+            List<Future<List<Task>>> futures = new ArrayList<Future<List<Task>>>(
+                    listGids.size());
+            for (final String listGid : listGids) {
+                futures.add(executor.submit(new Callable<List<Task>>() {
+                    public List<Task> call() throws NetworkFailureException {
+                        return fetchTaskList(listGid, syncPoint, listGid.equals(metaListGid));
+                    }
+                }));
+            }
+            for (Future<List<Task>> future : futures) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Log.e(TAG, e.toString());
+            throw new NetworkFailureException("get task lists: interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Log.e(TAG, cause.toString());
+            throw new ActionFailureException("get task lists: " + cause.toString());
+        } finally {
+            // the remaining requests are useless once one of them failed
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Task> fetchTaskList(String listGid, long syncPoint, boolean meta)
+            throws NetworkFailureException {
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
@@ -559,15 +812,23 @@ public class GTaskClient {
                     GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL);
             action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
             action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
-            action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
+            action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, syncPoint > 0);
             actionList.put(action);
             jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            // latest_sync_point
+            if (syncPoint > 0) {
+                jsPost.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, syncPoint);
+            }
+
+            // the tasks are built as the response is received
+            GTaskResponseReader.TaskListResponse response = executePost(jsPost,
+                    meta ? GTaskResponseReader.META_LIST : GTaskResponseReader.TASK_LIST);
+            updateLatestSyncPoint(response.getLatestSyncPoint());
+            return response.getTasks();
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -579,7 +840,104 @@ public class GTaskClient {
         return mAccount;
     }
 
+    /**
+     * Sync with a stand-in of the GTask server, e.g. the in-process fake the sync is measured
+     * with. The account is logged in without the account manager. A null transport goes back
+     * to google
+     */
+    public synchronized void setServer(GTaskTransport transport, Account account) {
+        if (transport != null && account == null) {
+            throw new IllegalArgumentException("the server needs an account");
+        }
+        mTransport = transport != null ? transport : new HttpGTaskTransport(
+                MAX_PARALLEL_REQUESTS);
+        mServerAccount = transport != null ? account : null;
+        mLoggedin = false;
+    }
+
+    public GTaskTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Times {@link #commitUpdate()} has been called since the last {@link #resetMetrics()}
+     */
+    public int getCommitCount() {
+        return mCommitCount;
+    }
+
+    /**
+     * Total time in milliseconds spent in {@link #commitUpdate()}
+     */
+    public long getCommitTime() {
+        return mCommitTime;
+    }
+
+    /**
+     * Reset the counters of the client and its transport
+     */
+    public void resetMetrics() {
+        mCommitCount = 0;
+        mCommitTime = 0;
+        mTransport.resetMetrics();
+    }
+
+    /**
+     * Set how many task lists can be downloaded at once, between 1 and
+     * {@link #MAX_PARALLEL_REQUESTS}
+     */
+    public void setParallelRequests(int count) {
+        if (count < 1 || count > MAX_PARALLEL_REQUESTS) {
+            throw new IllegalArgumentException("invalid parallel requests: " + count);
+        }
+        mParallelRequests = count;
+    }
+
+    /**
+     * Set the listener of the acknowledged nodes, null to remove it
+     */
+    public void setOnNodesCommittedListener(OnNodesCommittedListener listener) {
+        mCommittedListener = listener;
+    }
+
+    private void notifyNodesCommitted(List<Node> nodes) {
+        if (mCommittedListener != null && !nodes.isEmpty()) {
+            mCommittedListener.onNodesCommitted(nodes);
+        }
+    }
+
     public void resetUpdateArray() {
-        mUpdateArray = null;
+        mUpdateActions.clear();
+        mUpdateNodes.clear();
+        mUpdateBytes = 0;
+        mCreateNodes.clear();
+        mCreateListeners.clear();
+    }
+
+    /**
+     * Take the last modified time of the node from the result of the action which changed it.
+     * It is set to 0 if the result doesn't have one, and the node has to be read again to get it
+     */
+    private void setLastModified(Node node, JSONObject jsResult) {
+        if (jsResult != null && jsResult.has(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
+            node.setLastModified(jsResult.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED));
+        } else {
+            node.setLastModified(0);
+        }
+    }
+
+    /**
+     * The latest sync point returned by the server since {@link #resetLatestSyncPoint()}
+     */
+    public synchronized long getLatestSyncPoint() {
+        return mLatestSyncPoint;
+    }
+
+    public synchronized void resetLatestSyncPoint() {
+        mLatestSyncPoint = 0;
+    }
+
+    private synchronized void updateLatestSyncPoint(long syncPoint) {
+        mLatestSyncPoint = Math.max(mLatestSyncPoint, syncPoint);
     }
 }
@@ -17,34 +17,45 @@
 package net.micode.notes.gtask.remote;
 
 import android.app.Activity;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SyncBaseColumns;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.SqlNote;
+import net.micode.notes.gtask.data.SqlNoteWriter;
+import net.micode.notes.gtask.data.SyncJournal;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.tool.TextMerger;
+import net.micode.notes.ui.NotesPreferenceActivity;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 
@@ -61,6 +72,12 @@ public class GTaskManager {
 
     public static final int STATE_SYNC_CANCELLED = 4;
 
+    /**
+     * All the notes and tasks are reconciled at least this often, the syncs in between only
+     * handle the changes since the last one
+     */
+    private static final long FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000L;
+
     private static GTaskManager mInstance = null;
 
     private Activity mActivity;
@@ -75,6 +92,8 @@ public class GTaskManager {
 
     private HashMap<String, TaskList> mGTaskListHashMap;
 
+    private TaskListNameIndex mGTaskListNameIndex;
+
     private HashMap<String, Node> mGTaskHashMap;
 
     private HashMap<String, MetaData> mMetaHashMap;
@@ -87,16 +106,85 @@ public class GTaskManager {
 
     private HashMap<Long, String> mNidToGid;
 
+    private boolean mDeltaSync;
+
+    private long mSyncPoint;
+
+    /**
+     * In delta sync, only the tasks of these lists are loaded and only the notes of these
+     * folders are synced
+     */
+    private HashSet<String> mDirtyListGids;
+
+    private HashSet<Long> mDirtyFolderIds;
+
+    private HashSet<String> mRemoteDeletedGids;
+
+    /**
+     * The synced notes whose sync id is refreshed at the end of sync
+     */
+    private HashMap<Long, Node> mSyncIdMap;
+
+    private SqlNoteWriter mLocalWriter;
+
+    /**
+     * The notes being sent, by their task and meta data. A note goes to the journal once all
+     * of its nodes are acknowledged
+     */
+    private HashMap<Node, PushedNote> mPushedNotes;
+
+    private SyncJournal mJournal;
+
+    private GTaskClient.OnNodesCommittedListener mCommittedListener;
+
+    private GTaskSyncMetrics mMetrics;
+
+    private static class PushedNote {
+        private long mNoteId;
+
+        private long mModifiedDate;
+
+        private Node mTask;
+
+        private int mPendingNodes;
+
+        /**
+         * The task is created by this sync, the note doesn't have its gid yet
+         */
+        private boolean mTaskCreated;
+
+        public PushedNote(SqlNote sqlNote, Node task, int pendingNodes, boolean taskCreated) {
+            mNoteId = sqlNote.getId();
+            mModifiedDate = sqlNote.getModifiedDate();
+            mTask = task;
+            mPendingNodes = pendingNodes;
+            mTaskCreated = taskCreated;
+        }
+    }
+
     private GTaskManager() {
         mSyncing = false;
         mCancelled = false;
         mGTaskListHashMap = new HashMap<String, TaskList>();
+        mGTaskListNameIndex = new TaskListNameIndex();
         mGTaskHashMap = new HashMap<String, Node>();
         mMetaHashMap = new HashMap<String, MetaData>();
         mMetaList = null;
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mDeltaSync = false;
+        mSyncPoint = 0;
+        mDirtyListGids = null;
+        mDirtyFolderIds = null;
+        mRemoteDeletedGids = new HashSet<String>();
+        mSyncIdMap = new HashMap<Long, Node>();
+        mPushedNotes = new HashMap<Node, PushedNote>();
+        mCommittedListener = new GTaskClient.OnNodesCommittedListener() {
+            public void onNodesCommitted(List<Node> nodes) {
+                journalCommittedNodes(nodes);
+            }
+        };
     }
 
     public static synchronized GTaskManager getInstance() {
@@ -111,6 +199,9 @@ public class GTaskManager {
         mActivity = activity;
     }
 
+    /**
+     * The progress is published to the task, it can be null
+     */
     public int sync(Context context, GTaskASyncTask asyncTask) {
         if (mSyncing) {
             Log.d(TAG, "Sync is in progress");
@@ -118,54 +209,117 @@ public class GTaskManager {
         }
         mContext = context;
         mContentResolver = mContext.getContentResolver();
+        mLocalWriter = new SqlNoteWriter(mContentResolver);
+        mJournal = new SyncJournal(mContentResolver);
         mSyncing = true;
         mCancelled = false;
         mGTaskListHashMap.clear();
+        mGTaskListNameIndex.clear();
         mGTaskHashMap.clear();
         mMetaHashMap.clear();
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        mDeltaSync = isDeltaSyncAvailable();
+        mDirtyListGids = null;
+        mDirtyFolderIds = null;
+        mRemoteDeletedGids.clear();
+        mSyncIdMap.clear();
+        mPushedNotes.clear();
+        mMetrics = new GTaskSyncMetrics();
+        GTaskClient.getInstance().resetMetrics();
+        int state = STATE_SUCCESS;
 
         try {
             GTaskClient client = GTaskClient.getInstance();
             client.resetUpdateArray();
+            client.resetLatestSyncPoint();
+            client.setOnNodesCommittedListener(mCommittedListener);
+
+            // finish the writes of the last sync if it was interrupted, the notes sent by it
+            // are not sent again
+            long phaseStart = System.currentTimeMillis();
+            int recoveredOperations = mJournal.recover();
+            if (recoveredOperations > 0) {
+                mMetrics.addDbWrites(1, recoveredOperations);
+            }
+            mMetrics.addPhaseTime(GTaskSyncMetrics.PHASE_RECOVER, phaseStart);
 
             // login google task
             if (!mCancelled) {
-                if (!client.login(mActivity)) {
+                phaseStart = System.currentTimeMillis();
+                // the background syncs have no activity
+                if (!client.login(mActivity != null ? mActivity : mContext)) {
                     throw new NetworkFailureException("login google task failed");
                 }
+                mMetrics.addPhaseTime(GTaskSyncMetrics.PHASE_LOGIN, phaseStart);
             }
 
             // get the task list from google
-            asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
+            if (asyncTask != null) {
+                asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
+            }
+            phaseStart = System.currentTimeMillis();
             initGTaskList();
+            mMetrics.addPhaseTime(GTaskSyncMetrics.PHASE_INIT_LIST, phaseStart);
+            // the changes made after this point, including our own ones, are got next time
+            mSyncPoint = client.getLatestSyncPoint();
 
             // do content sync work
-            asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
+            if (asyncTask != null) {
+                asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
+            }
+            phaseStart = System.currentTimeMillis();
             syncContent();
+            mMetrics.addPhaseTime(GTaskSyncMetrics.PHASE_SYNC_CONTENT, phaseStart);
+
+            if (!mCancelled) {
+                saveSyncPoint();
+            }
         } catch (NetworkFailureException e) {
             Log.e(TAG, e.toString());
-            return STATE_NETWORK_ERROR;
+            state = STATE_NETWORK_ERROR;
         } catch (ActionFailureException e) {
             Log.e(TAG, e.toString());
-            return STATE_INTERNAL_ERROR;
+            state = STATE_INTERNAL_ERROR;
         } catch (Exception e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            return STATE_INTERNAL_ERROR;
+            state = STATE_INTERNAL_ERROR;
         } finally {
             mGTaskListHashMap.clear();
+            mGTaskListNameIndex.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mDirtyListGids = null;
+            mDirtyFolderIds = null;
+            mRemoteDeletedGids.clear();
+            mSyncIdMap.clear();
+            mPushedNotes.clear();
+            mLocalWriter.clear();
+            GTaskClient.getInstance().setOnNodesCommittedListener(null);
+            // the activity is for this run only, the next one may be a background sync
+            setActivityContext(null);
+            checkpointDatabase();
+            mMetrics.addDbWrites(mLocalWriter.getBatchCount(), mLocalWriter.getOperationCount());
             mSyncing = false;
         }
 
-        return mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
+        if (state == STATE_SUCCESS && mCancelled) {
+            state = STATE_SYNC_CANCELLED;
+        }
+        saveSyncMetrics(state);
+        return state;
+    }
+
+    private void saveSyncMetrics(int state) {
+        mMetrics.finish(GTaskClient.getInstance(), mDeltaSync, state);
+        Log.i(TAG, "sync metrics: " + mMetrics.toString());
+        GTaskSyncMetrics.save(mContext, mMetrics);
+        mMetrics = null;
     }
 
     private void initGTaskList() throws NetworkFailureException {
@@ -175,8 +329,14 @@ public class GTaskManager {
         try {
             JSONArray jsTaskLists = client.getTaskLists();
 
-            // init meta list first
+            if (mDeltaSync && mDirtyListGids == null) {
+                findDirtyLists(jsTaskLists);
+            }
+
+            // find the lists to load, the meta list first
             mMetaList = null;
+            ArrayList<String> loadGids = new ArrayList<String>();
+            ArrayList<TaskList> loadLists = new ArrayList<TaskList>();
             for (int i = 0; i < jsTaskLists.length(); i++) {
                 JSONObject object = jsTaskLists.getJSONObject(i);
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
@@ -187,19 +347,26 @@ public class GTaskManager {
                     mMetaList = new TaskList();
                     mMetaList.setContentByRemoteJSON(object);
 
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
-                        }
+                    // nothing to sync, no need to load meta data
+                    if (mDirtyListGids != null && mDirtyListGids.isEmpty()
+                            && mDirtyFolderIds.isEmpty()) {
+                        continue;
+                    }
+                    loadGids.add(0, gid);
+                    loadLists.add(0, mMetaList);
+                } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                    TaskList tasklist = new TaskList();
+                    tasklist.setContentByRemoteJSON(object);
+                    mGTaskListHashMap.put(gid, tasklist);
+                    mGTaskHashMap.put(gid, tasklist);
+                    mGTaskListNameIndex.add(tasklist);
+
+                    // no change in the list since last sync, skip its tasks
+                    if (mDirtyListGids != null && !mDirtyListGids.contains(gid)) {
+                        continue;
                     }
+                    loadGids.add(gid);
+                    loadLists.add(tasklist);
                 }
             }
 
@@ -211,35 +378,36 @@ public class GTaskManager {
                 GTaskClient.getInstance().createTaskList(mMetaList);
             }
 
-            // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    TaskList tasklist = new TaskList();
-                    tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);
-
+            // the lists are downloaded concurrently but merged in the order above, so the
+            // meta data is ready before the tasks refer to it
+            List<List<Task>> remoteLists = client.getTaskLists(loadGids, 0,
+                    mMetaList.getGid());
+            for (int i = 0; i < loadLists.size(); i++) {
+                TaskList tasklist = loadLists.get(i);
+                List<Task> remoteTasks = remoteLists.get(i);
+                if (tasklist == mMetaList) {
+                    // load meta data
+                    for (Task remoteTask : remoteTasks) {
+                        MetaData metaData = (MetaData) remoteTask;
+                        if (metaData.isWorthSaving()) {
+                            mMetaList.addChildTask(metaData);
+                            if (metaData.getGid() != null) {
+                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
+                            }
+                        }
+                    }
+                } else {
                     // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
+                    for (Task task : remoteTasks) {
                         if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
+                            task.setMetaInfo(mMetaHashMap.get(task.getGid()));
                             tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
+                            mGTaskHashMap.put(task.getGid(), task);
                         }
                     }
                 }
             }
+
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -247,6 +415,149 @@ public class GTaskManager {
         }
     }
 
+    private boolean isDeltaSyncAvailable() {
+        if (NotesPreferenceActivity.isFullSyncRequested(mContext)
+                || NotesPreferenceActivity.getLastSyncPoint(mContext) <= 0) {
+            return false;
+        }
+        return System.currentTimeMillis()
+                - NotesPreferenceActivity.getLastFullSyncTime(mContext) < FULL_SYNC_INTERVAL;
+    }
+
+    /**
+     * Find the lists changed remotely since last sync and the folders with local changes,
+     * including the folders the changed notes were moved or deleted from. A change of a task
+     * also updates the last modified time of its list, so only the lists modified after the
+     * last sync point are asked for their changed tasks
+     */
+    private void findDirtyLists(JSONArray jsTaskLists) throws NetworkFailureException,
+            JSONException {
+        GTaskClient client = GTaskClient.getInstance();
+        long lastSyncPoint = NotesPreferenceActivity.getLastSyncPoint(mContext);
+        mDirtyListGids = new HashSet<String>();
+        mDirtyFolderIds = new HashSet<Long>();
+
+        ArrayList<String> listGids = new ArrayList<String>();
+        for (int i = 0; i < jsTaskLists.length(); i++) {
+            JSONObject object = jsTaskLists.getJSONObject(i);
+            String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
+            String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
+
+            if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
+                    && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                            + GTaskStringUtils.FOLDER_META)
+                    && object.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED,
+                            Long.MAX_VALUE) > lastSyncPoint) {
+                listGids.add(gid);
+            }
+        }
+
+        List<List<Task>> remoteLists = client.getTaskLists(listGids, lastSyncPoint, null);
+        for (int i = 0; i < listGids.size(); i++) {
+            List<Task> remoteTasks = remoteLists.get(i);
+            if (!remoteTasks.isEmpty()) {
+                mDirtyListGids.add(listGids.get(i));
+            }
+            for (Task task : remoteTasks) {
+                if (task.getDeleted()) {
+                    mRemoteDeletedGids.add(task.getGid());
+                }
+            }
+        }
+
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.PARENT_ID, NoteColumns.ORIGIN_PARENT_ID
+            }, "(type=? AND (local_modified=1 OR parent_id=?))", new String[] {
+                    String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+            }, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    long parentId = c.getLong(0);
+                    long originParentId = c.getLong(1);
+                    if (parentId != Notes.ID_TRASH_FOLER) {
+                        mDirtyFolderIds.add(parentId);
+                    }
+                    // the origin parent is 0 by default, so it's only trusted for deleted notes
+                    if (originParentId != Notes.ID_ROOT_FOLDER
+                            || parentId == Notes.ID_TRASH_FOLER) {
+                        mDirtyFolderIds.add(originParentId);
+                    }
+                }
+            } else {
+                Log.w(TAG, "failed to query locally modified notes");
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+                c = null;
+            }
+        }
+
+        if (mDirtyFolderIds.isEmpty()) {
+            return;
+        }
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.GTASK_ID
+            }, NoteColumns.ID + " IN (" + TextUtils.join(",", mDirtyFolderIds) + ")", null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    String gid = c.getString(0);
+                    if (!TextUtils.isEmpty(gid)) {
+                        mDirtyListGids.add(gid);
+                    }
+                }
+            } else {
+                Log.w(TAG, "failed to query locally modified folders");
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * The selection limiting the synced notes to the dirty folders in delta sync
+     */
+    private String getDeltaSyncSelection() {
+        if (!mDeltaSync) {
+            return "";
+        }
+        HashSet<Long> folderIds = new HashSet<Long>(mDirtyFolderIds);
+        for (String gid : mDirtyListGids) {
+            Long nid = mGidToNid.get(gid);
+            if (nid != null) {
+                folderIds.add(nid);
+            }
+        }
+        return " AND (" + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE + " OR "
+                + NoteColumns.PARENT_ID + " IN (" + TextUtils.join(",", folderIds) + "))";
+    }
+
+    /**
+     * In delta sync, a note whose task is not loaded is either deleted remotely or in a list
+     * without remote changes. The latter can't be synced now and is left to a full sync
+     */
+    private boolean isRemoteNodeUnknown(String gid) {
+        if (mDeltaSync && !mRemoteDeletedGids.contains(gid)) {
+            Log.w(TAG, "task " + gid + " is not loaded, request full sync");
+            NotesPreferenceActivity.setFullSyncRequested(mContext, true);
+            return true;
+        }
+        return false;
+    }
+
+    private void saveSyncPoint() {
+        NotesPreferenceActivity.setLastSyncPoint(mContext, mSyncPoint);
+        if (!mDeltaSync) {
+            NotesPreferenceActivity.setLastFullSyncTime(mContext, System.currentTimeMillis());
+            NotesPreferenceActivity.setFullSyncRequested(mContext, false);
+        }
+    }
+
     private void syncContent() throws NetworkFailureException {
         int syncType;
         Cursor c = null;
@@ -272,6 +583,9 @@ public class GTaskManager {
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
                         doContentSync(Node.SYNC_ACTION_DEL_REMOTE, node, c);
+                    } else if (gid.trim().length() > 0 && isRemoteNodeUnknown(gid)) {
+                        // keep it until its task is deleted
+                        continue;
                     }
 
                     mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
@@ -287,12 +601,14 @@ public class GTaskManager {
         }
 
         // sync folder first
+        long phaseStart = System.currentTimeMillis();
         syncFolder();
+        mMetrics.addPhaseTime(GTaskSyncMetrics.PHASE_SYNC_FOLDER, phaseStart);
 
         // for note existing in database
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    "(type=? AND parent_id<>?)" + getDeltaSyncSelection(), new String[] {
                             String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
@@ -308,6 +624,8 @@ public class GTaskManager {
                         if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
                             // local add
                             syncType = Node.SYNC_ACTION_ADD_REMOTE;
+                        } else if (isRemoteNodeUnknown(gid)) {
+                            syncType = Node.SYNC_ACTION_NONE;
                         } else {
                             // remote delete
                             syncType = Node.SYNC_ACTION_DEL_LOCAL;
@@ -331,7 +649,12 @@ public class GTaskManager {
         while (iter.hasNext()) {
             Map.Entry<String, Node> entry = iter.next();
             node = entry.getValue();
-            doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
+            syncRemainingNode(node);
+        }
+
+        // the deletes are queued with the updates, send them before the notes are deleted
+        if (!mCancelled) {
+            commitAll();
         }
 
         // mCancelled can be set by another thread, so we neet to check one by
@@ -341,16 +664,59 @@ public class GTaskManager {
             if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
                 throw new ActionFailureException("failed to batch-delete local deleted notes");
             }
+            if (!mLocalDeleteIdMap.isEmpty()) {
+                mMetrics.addDbWrites(1, mLocalDeleteIdMap.size());
+            }
         }
 
         // refresh local sync id
         if (!mCancelled) {
-            GTaskClient.getInstance().commitUpdate();
+            phaseStart = System.currentTimeMillis();
             refreshLocalSyncId();
+            mMetrics.addPhaseTime(GTaskSyncMetrics.PHASE_REFRESH_SYNC_ID, phaseStart);
+            // all the notes have been written
+            mJournal.clear();
         }
 
     }
 
+    /**
+     * Write the queued notes and send the queued actions. The tasks created last queue the
+     * writes of their notes, so the notes are written again after them
+     */
+    private void commitAll() throws NetworkFailureException {
+        mLocalWriter.flush();
+        GTaskClient.getInstance().commitUpdate();
+        mLocalWriter.flush();
+    }
+
+    /**
+     * In delta sync, a task may have been moved into the list from a folder which is not
+     * synced this time, so it's looked up locally before being added
+     */
+    private void syncRemainingNode(Node node) throws NetworkFailureException {
+        if (mDeltaSync) {
+            Cursor c = null;
+            try {
+                c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                        "(gtask_id=? AND parent_id<>?)", new String[] {
+                                node.getGid(), String.valueOf(Notes.ID_TRASH_FOLER)
+                        }, null);
+                if (c != null && c.moveToFirst()) {
+                    mGidToNid.put(node.getGid(), c.getLong(SqlNote.ID_COLUMN));
+                    mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), node.getGid());
+                    doContentSync(node.getSyncAction(c), node, c);
+                    return;
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
+    }
+
     private void syncFolder() throws NetworkFailureException {
         Cursor c = null;
         String gid;
@@ -472,8 +838,9 @@ public class GTaskManager {
             }
         }
 
-        if (!mCancelled)
-            GTaskClient.getInstance().commitUpdate();
+        if (!mCancelled) {
+            commitAll();
+        }
     }
 
     private void doContentSync(int syncType, Node node, Cursor c) throws NetworkFailureException {
@@ -510,9 +877,7 @@ public class GTaskManager {
                 updateRemoteNode(node, c);
                 break;
             case Node.SYNC_ACTION_UPDATE_CONFLICT:
-                // merging both modifications maybe a good idea
-                // right now just use local update simply
-                updateRemoteNode(node, c);
+                mergeConflictNode(node, c);
                 break;
             case Node.SYNC_ACTION_NONE:
                 break;
@@ -575,6 +940,7 @@ public class GTaskManager {
                 e.printStackTrace();
             }
             sqlNote.setContent(js);
+            sqlNote.setSyncBase(node.getName());
 
             Long parentId = mGidToNid.get(((Task) node).getParent().getGid());
             if (parentId == null) {
@@ -586,14 +952,21 @@ public class GTaskManager {
 
         // create the local node
         sqlNote.setGtaskId(node.getGid());
-        sqlNote.commit(false);
-
-        // update gid-nid mapping
-        mGidToNid.put(node.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), node.getGid());
+        final boolean hasSyncId = setLocalSyncId(sqlNote, node);
+        final Node localNode = node;
+        commitLocalNote(sqlNote, false, new SqlNoteWriter.OnCommittedListener() {
+            public void onCommitted(SqlNote note) throws NetworkFailureException {
+                // update gid-nid mapping
+                mGidToNid.put(localNode.getGid(), note.getId());
+                mNidToGid.put(note.getId(), localNode.getGid());
+                if (!hasSyncId) {
+                    addSyncIdNode(note.getId(), localNode);
+                }
 
-        // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+                // update meta
+                updateRemoteMeta(localNode.getGid(), note);
+            }
+        });
     }
 
     private void updateLocalNode(Node node, Cursor c) throws NetworkFailureException {
@@ -605,6 +978,9 @@ public class GTaskManager {
         // update the note locally
         sqlNote = new SqlNote(mContext, c);
         sqlNote.setContent(node.getLocalJSONFromContent());
+        if (sqlNote.isNoteType()) {
+            sqlNote.setSyncBase(node.getName());
+        }
 
         Long parentId = (node instanceof Task) ? mGidToNid.get(((Task) node).getParent().getGid())
                 : new Long(Notes.ID_ROOT_FOLDER);
@@ -613,10 +989,32 @@ public class GTaskManager {
             throw new ActionFailureException("cannot update local node");
         }
         sqlNote.setParentId(parentId.longValue());
-        sqlNote.commit(true);
+        if (!setLocalSyncId(sqlNote, node)) {
+            addSyncIdNode(sqlNote.getId(), node);
+        }
+        final String gid = node.getGid();
+        commitLocalNote(sqlNote, true, new SqlNoteWriter.OnCommittedListener() {
+            public void onCommitted(SqlNote note) throws NetworkFailureException {
+                // update meta info
+                updateRemoteMeta(gid, note);
+            }
+        });
+    }
 
-        // update meta info
-        updateRemoteMeta(node.getGid(), sqlNote);
+    /**
+     * The notes are written with others in a batch, the folders are written at once since
+     * their ids are needed by the notes in them
+     */
+    private void commitLocalNote(SqlNote sqlNote, boolean validateVersion,
+            SqlNoteWriter.OnCommittedListener listener) throws NetworkFailureException {
+        if (sqlNote.isNoteType()) {
+            mLocalWriter.add(sqlNote, validateVersion, listener);
+        } else {
+            sqlNote.commit(validateVersion);
+            if (listener != null) {
+                listener.onCommitted(sqlNote);
+            }
+        }
     }
 
     private void addRemoteNode(Node node, Cursor c) throws NetworkFailureException {
@@ -639,11 +1037,19 @@ public class GTaskManager {
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
-            GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            // the task is created with others later, the note is updated when it has the gid
+            final SqlNote note = sqlNote;
+            final PushedNote pushed = new PushedNote(sqlNote, task, 2, true);
+            trackPushedNode(task, pushed);
+            GTaskClient.getInstance().addCreateNode(task,
+                    new GTaskClient.OnNodeCreatedListener() {
+                        public void onNodeCreated(Node node) throws NetworkFailureException {
+                            // add meta
+                            trackPushedNode(updateRemoteMeta(node.getGid(), note), pushed);
+                            onRemoteNodeAdded(node, note);
+                        }
+                    });
+            return;
         } else {
             TaskList tasklist = null;
 
@@ -656,19 +1062,9 @@ public class GTaskManager {
             else
                 folderName += sqlNote.getSnippet();
 
-            Iterator<Map.Entry<String, TaskList>> iter = mGTaskListHashMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, TaskList> entry = iter.next();
-                String gid = entry.getKey();
-                TaskList list = entry.getValue();
-
-                if (list.getName().equals(folderName)) {
-                    tasklist = list;
-                    if (mGTaskHashMap.containsKey(gid)) {
-                        mGTaskHashMap.remove(gid);
-                    }
-                    break;
-                }
+            tasklist = mGTaskListNameIndex.get(folderName);
+            if (tasklist != null) {
+                mGTaskHashMap.remove(tasklist.getGid());
             }
 
             // no match we can add now
@@ -677,47 +1073,193 @@ public class GTaskManager {
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
                 GTaskClient.getInstance().createTaskList(tasklist);
                 mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                mGTaskListNameIndex.add(tasklist);
             }
             n = (Node) tasklist;
         }
 
+        onRemoteNodeAdded(n, sqlNote);
+    }
+
+    private void onRemoteNodeAdded(Node n, SqlNote sqlNote) throws NetworkFailureException {
         // update local note
         sqlNote.setGtaskId(n.getGid());
-        sqlNote.commit(false);
-        sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        if (sqlNote.isNoteType()) {
+            sqlNote.setSyncBase(n.getName());
+            mLocalWriter.add(sqlNote, false, null);
+            sqlNote.resetLocalModified();
+            mLocalWriter.add(sqlNote, true, null);
+        } else {
+            sqlNote.commit(false);
+            sqlNote.resetLocalModified();
+            sqlNote.commit(true);
+        }
 
         // gid-id mapping
         mGidToNid.put(n.getGid(), sqlNote.getId());
         mNidToGid.put(sqlNote.getId(), n.getGid());
+        addSyncIdNode(sqlNote.getId(), n);
     }
 
     private void updateRemoteNode(Node node, Cursor c) throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
+        updateRemoteNode(node, new SqlNote(mContext, c));
+    }
+
+    /**
+     * Both the note and its task have been changed since last sync. The text is merged against
+     * the one of last sync, and the merged note is sent. The other fields of the note are kept,
+     * and so is the whole note if there is no synced text, e.g. it was synced by an old version.
+     * If both sides changed the same lines, the local text is sent and the remote one is kept
+     * in a marked copy of the note
+     */
+    private void mergeConflictNode(Node node, Cursor c) throws NetworkFailureException {
+        if (mCancelled) {
+            return;
+        }
 
         SqlNote sqlNote = new SqlNote(mContext, c);
+        String base = sqlNote.isNoteType() ? getSyncBase(sqlNote.getId()) : null;
+        if (base != null && node.getName() != null) {
+            try {
+                JSONObject js = sqlNote.getContent();
+                JSONArray dataArray = js.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
+                for (int i = 0; i < dataArray.length(); i++) {
+                    JSONObject data = dataArray.getJSONObject(i);
+                    if (TextUtils.equals(data.getString(DataColumns.MIME_TYPE),
+                            DataConstants.NOTE)) {
+                        String local = data.getString(DataColumns.CONTENT);
+                        String merged = TextMerger.merge(base, local, node.getName());
+                        if (merged == null) {
+                            addConflictCopy(js, node.getName(), sqlNote.getParentId());
+                        } else if (!merged.equals(local)) {
+                            data.put(DataColumns.CONTENT, merged);
+                            js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE).put(
+                                    NoteColumns.SNIPPET, merged);
+                            sqlNote.setContent(js);
+                        }
+                        break;
+                    }
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                e.printStackTrace();
+                throw new ActionFailureException("mergeConflictNode: handing JSONObject failed");
+            }
+        }
+        updateRemoteNode(node, sqlNote);
+    }
 
-        // update remotely
-        node.setContentByLocalJSON(sqlNote.getContent());
-        GTaskClient.getInstance().addUpdateNode(node);
+    /**
+     * Save the remote text of a conflicting note in a new note of the folder. It's created
+     * locally and sent by the next sync. A sync interrupted before the note is resolved meets
+     * the same conflict again, the copy is not made twice then
+     */
+    private void addConflictCopy(JSONObject content, String text, long parentId)
+            throws JSONException {
+        String copyText = mContext.getString(R.string.sync_conflict_copy) + "\n" + text;
+        if (hasConflictCopy(copyText, parentId)) {
+            Log.i(TAG, "conflicting note " + content.getJSONObject(
+                    GTaskStringUtils.META_HEAD_NOTE).optLong(NoteColumns.ID) + " already copied");
+            return;
+        }
 
-        // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+        JSONObject js = new JSONObject(content.toString());
+        JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+        note.remove(NoteColumns.ID);
+        note.remove(NoteColumns.ALERTED_DATE);
+        note.remove(NoteColumns.WIDGET_ID);
+        note.remove(NoteColumns.WIDGET_TYPE);
+        note.put(NoteColumns.SNIPPET, copyText);
+        JSONArray dataArray = js.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
+        for (int i = 0; i < dataArray.length(); i++) {
+            JSONObject data = dataArray.getJSONObject(i);
+            data.remove(DataColumns.ID);
+            if (TextUtils.equals(data.getString(DataColumns.MIME_TYPE), DataConstants.NOTE)) {
+                data.put(DataColumns.CONTENT, copyText);
+            }
+        }
 
-        // move task if necessary
-        if (sqlNote.isNoteType()) {
-            Task task = (Task) node;
-            TaskList preParentList = task.getParent();
+        SqlNote copy = new SqlNote(mContext);
+        copy.setContent(js);
+        copy.setParentId(parentId);
+        copy.setLocalModified();
+        copy.commit(false);
+        Log.i(TAG, "conflicting note " + content.getJSONObject(GTaskStringUtils.META_HEAD_NOTE)
+                .optLong(NoteColumns.ID) + " copied to " + copy.getId());
+    }
 
+    private boolean hasConflictCopy(String copyText, long parentId) {
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID
+        }, "(type=? AND parent_id=? AND snippet=?)", new String[] {
+                String.valueOf(Notes.TYPE_NOTE), String.valueOf(parentId), copyText
+        }, null);
+        if (c == null) {
+            Log.w(TAG, "failed to query conflict copies");
+            return false;
+        }
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    private String getSyncBase(long noteId) {
+        Cursor c = mContentResolver.query(Notes.CONTENT_SYNC_BASE_URI, new String[] {
+                SyncBaseColumns.CONTENT
+        }, SyncBaseColumns.NOTE_ID + "=?", new String[] {
+                String.valueOf(noteId)
+        }, null);
+        if (c == null) {
+            Log.w(TAG, "failed to query synced text");
+            return null;
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void updateRemoteNode(Node node, SqlNote sqlNote) throws NetworkFailureException {
+
+        // find the list of the task, the task is moved if it's changed
+        TaskList curParentList = null;
+        PushedNote pushed = null;
+        if (sqlNote.isNoteType()) {
             String curParentGid = mNidToGid.get(sqlNote.getParentId());
             if (curParentGid == null) {
                 Log.e(TAG, "cannot find task's parent tasklist");
                 throw new ActionFailureException("cannot update remote task");
             }
-            TaskList curParentList = mGTaskListHashMap.get(curParentGid);
+            curParentList = mGTaskListHashMap.get(curParentGid);
+            pushed = new PushedNote(sqlNote, node,
+                    ((Task) node).getParent() != curParentList ? 3 : 2, false);
+            trackPushedNode(node, pushed);
+        }
+
+        // update remotely, a renamed list is indexed by its new name
+        String oldName = node.getName();
+        node.setContentByLocalJSON(sqlNote.getContent());
+        if (node instanceof TaskList) {
+            mGTaskListNameIndex.rename((TaskList) node, oldName);
+        }
+        GTaskClient.getInstance().addUpdateNode(node);
+        if (sqlNote.isNoteType()) {
+            sqlNote.setSyncBase(node.getName());
+        }
+
+        // update meta
+        trackPushedNode(updateRemoteMeta(node.getGid(), sqlNote), pushed);
 
+        // move task if necessary
+        if (sqlNote.isNoteType()) {
+            Task task = (Task) node;
+            TaskList preParentList = task.getParent();
             if (preParentList != curParentList) {
                 preParentList.removeChildTask(task);
                 curParentList.addChildTask(task);
@@ -727,10 +1269,24 @@ public class GTaskManager {
 
         // clear local modified flag
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        commitLocalNote(sqlNote, true, null);
+        addSyncIdNode(sqlNote.getId(), node);
     }
 
-    private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
+    /**
+     * The system folders don't keep sync id
+     */
+    private void addSyncIdNode(long noteId, Node node) {
+        if (noteId > 0) {
+            mSyncIdMap.put(noteId, node);
+        }
+    }
+
+    /**
+     * Returns the meta data sent, null if the note is a folder
+     */
+    private MetaData updateRemoteMeta(String gid, SqlNote sqlNote)
+            throws NetworkFailureException {
         if (sqlNote != null && sqlNote.isNoteType()) {
             MetaData metaData = mMetaHashMap.get(gid);
             if (metaData != null) {
@@ -741,52 +1297,148 @@ public class GTaskManager {
                 metaData.setMeta(gid, sqlNote.getContent());
                 mMetaList.addChildTask(metaData);
                 mMetaHashMap.put(gid, metaData);
-                GTaskClient.getInstance().createTask(metaData);
+                GTaskClient.getInstance().addCreateNode(metaData, null);
             }
+            return metaData;
+        }
+        return null;
+    }
+
+    /**
+     * The note taking the remote content keeps the sync id with it, so it's not synced again
+     * if the sync is interrupted. Returns false if the last modified time is unknown
+     */
+    private boolean setLocalSyncId(SqlNote sqlNote, Node node) {
+        if (node.getLastModified() == 0) {
+            return false;
+        }
+        sqlNote.setSyncId(node.getLastModified());
+        return true;
+    }
+
+    private void trackPushedNode(Node node, PushedNote pushed) {
+        if (node != null && pushed != null) {
+            mPushedNotes.put(node, pushed);
         }
     }
 
+    /**
+     * Journal the notes whose task and meta data have all been acknowledged, before their
+     * local writes which may be still queued. The gid of a created task is journaled as soon
+     * as it's acknowledged, without the sync id, so the note stays modified but the task is
+     * not created again if its meta data fails
+     */
+    private void journalCommittedNodes(List<Node> nodes) {
+        for (Node node : nodes) {
+            PushedNote pushed = mPushedNotes.get(node);
+            if (pushed == null || pushed.mPendingNodes == 0) {
+                continue;
+            }
+            pushed.mPendingNodes--;
+            if (pushed.mPendingNodes == 0) {
+                mJournal.add(pushed.mNoteId, pushed.mTask.getGid(),
+                        pushed.mTask.getLastModified(), pushed.mModifiedDate);
+            } else if (node == pushed.mTask && pushed.mTaskCreated) {
+                mJournal.add(pushed.mNoteId, pushed.mTask.getGid(), 0, pushed.mModifiedDate);
+            }
+        }
+        mJournal.flush();
+    }
+
     private void refreshLocalSyncId() throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
-        // get the latest gtask list
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
-        mMetaHashMap.clear();
-        initGTaskList();
+        // read the nodes whose last modified time is not in the results again, only the lists
+        // holding them are downloaded
+        HashSet<String> listGids = new HashSet<String>();
+        boolean refreshTaskLists = false;
+        for (Node node : mSyncIdMap.values()) {
+            if (node.getLastModified() == 0) {
+                if (node instanceof Task) {
+                    listGids.add(((Task) node).getParent().getGid());
+                } else {
+                    refreshTaskLists = true;
+                }
+            }
+        }
+        if (refreshTaskLists || !listGids.isEmpty()) {
+            refreshLastModified(refreshTaskLists, new ArrayList<String>(listGids));
+        }
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        for (Map.Entry<Long, Node> entry : mSyncIdMap.entrySet()) {
+            Node node = entry.getValue();
+            if (node.getLastModified() == 0) {
+                Log.e(TAG, "something is missed");
+                throw new ActionFailureException(
+                        "some synced items don't have last modified time");
+            }
+            operationList.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                    Notes.CONTENT_NOTE_URI, entry.getKey()))
+                    .withValue(NoteColumns.SYNC_ID, node.getLastModified()).build());
+        }
+        if (operationList.isEmpty()) {
+            return;
+        }
 
-        Cursor c = null;
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
-            if (c != null) {
-                while (c.moveToNext()) {
-                    String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    Node node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
-                    } else {
-                        Log.e(TAG, "something is missed");
-                        throw new ActionFailureException(
-                                "some local items don't have gid after sync");
+            mContentResolver.applyBatch(Notes.AUTHORITY, operationList);
+            mMetrics.addDbWrites(1, operationList.size());
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to refresh local sync id");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to refresh local sync id");
+        }
+    }
+
+    private void refreshLastModified(boolean refreshTaskLists, List<String> listGids)
+            throws NetworkFailureException {
+        GTaskClient client = GTaskClient.getInstance();
+        HashMap<String, Long> lastModifiedMap = new HashMap<String, Long>();
+        try {
+            if (refreshTaskLists) {
+                JSONArray jsArray = client.getTaskLists();
+                for (int i = 0; i < jsArray.length(); i++) {
+                    JSONObject object = jsArray.getJSONObject(i);
+                    if (object.has(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
+                        lastModifiedMap.put(object.getString(GTaskStringUtils.GTASK_JSON_ID),
+                                object.getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED));
                     }
                 }
-            } else {
-                Log.w(TAG, "failed to query local note to refresh sync id");
             }
-        } finally {
-            if (c != null) {
-                c.close();
-                c = null;
+            // the tasks read without a last modified time have 0
+            for (List<Task> remoteTasks : client.getTaskLists(listGids, 0, null)) {
+                for (Task task : remoteTasks) {
+                    if (task.getLastModified() != 0) {
+                        lastModifiedMap.put(task.getGid(), task.getLastModified());
+                    }
+                }
             }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("refreshLastModified: handing JSONObject failed");
+        }
+
+        for (Node node : mSyncIdMap.values()) {
+            Long lastModified = lastModifiedMap.get(node.getGid());
+            if (node.getLastModified() == 0 && lastModified != null) {
+                node.setLastModified(lastModified);
+            }
+        }
+    }
+
+    private void checkpointDatabase() {
+        // sync writes a lot, move the write-ahead log back to the database now rather than
+        // leave it to the next writer
+        try {
+            mContentResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_CHECKPOINT, null, null);
+        } catch (Exception e) {
+            Log.w(TAG, "checkpoint database failed: " + e.toString());
         }
     }
 
@@ -797,4 +1449,12 @@ public class GTaskManager {
     public void cancelSync() {
         mCancelled = true;
     }
+
+    /**
+     * Reconcile all the notes and tasks in next sync instead of only the changed ones, the
+     * request is kept if the app is killed before
+     */
+    public void requestFullSync(Context context) {
+        NotesPreferenceActivity.setFullSyncRequested(context, true);
+    }
 }
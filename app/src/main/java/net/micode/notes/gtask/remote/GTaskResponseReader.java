@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import net.micode.notes.gtask.data.MetaData;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Reads the responses of GTask as they are received. Only the wanted parts of a response are
+ * built into json objects, the rest, e.g. the html around the "_setup(" payload, is skipped.
+ */
+class GTaskResponseReader implements GTaskTransport.ResponseParser<JSONObject> {
+    private static final String SETUP_BEGIN = "_setup(";
+
+    private static final String SETUP_VERSION = "v";
+
+    private static final String SETUP_TASKS = "t";
+
+    /**
+     * Reads the whole json response
+     */
+    public static final GTaskResponseReader RESPONSE = new GTaskResponseReader(null);
+
+    /**
+     * Reads the tasks of a list into {@link Task}s as they are received
+     */
+    public static final GTaskTransport.ResponseParser<TaskListResponse> TASK_LIST =
+            new TaskListReader(false);
+
+    /**
+     * Reads the tasks of the meta list into {@link MetaData}s as they are received
+     */
+    public static final GTaskTransport.ResponseParser<TaskListResponse> META_LIST =
+            new TaskListReader(true);
+
+    /**
+     * The tasks of a list and the sync point of the response, 0 if it has none
+     */
+    public static class TaskListResponse {
+        private final List<Task> mTasks;
+
+        private final long mLatestSyncPoint;
+
+        public TaskListResponse(List<Task> tasks, long latestSyncPoint) {
+            mTasks = tasks;
+            mLatestSyncPoint = latestSyncPoint;
+        }
+
+        public List<Task> getTasks() {
+            return mTasks;
+        }
+
+        public long getLatestSyncPoint() {
+            return mLatestSyncPoint;
+        }
+    }
+
+    /**
+     * Reads the client version and the task lists from the "_setup(" payload of the page. The
+     * result is like {"v":version,"t":{"lists":[...]}}
+     */
+    public static final GTaskTransport.ResponseParser<JSONObject> SETUP_PAGE =
+            new GTaskTransport.ResponseParser<JSONObject>() {
+                public JSONObject parse(Reader reader) throws IOException, JSONException {
+                    if (!skipTo(reader, SETUP_BEGIN)) {
+                        throw new JSONException("no setup payload in the page");
+                    }
+                    JsonReader jsonReader = newJsonReader(reader);
+                    try {
+                        JSONObject js = new JSONObject();
+                        jsonReader.beginObject();
+                        while (jsonReader.hasNext()) {
+                            String name = jsonReader.nextName();
+                            if (SETUP_VERSION.equals(name)) {
+                                js.put(name, readValue(jsonReader));
+                            } else if (SETUP_TASKS.equals(name)) {
+                                js.put(name, readObject(jsonReader, new HashSet<String>(
+                                        Arrays.asList(GTaskStringUtils.GTASK_JSON_LISTS))));
+                            } else {
+                                jsonReader.skipValue();
+                            }
+                        }
+                        // the rest of the page is not needed
+                        return js;
+                    } catch (IllegalStateException e) {
+                        throw new JSONException(e.toString());
+                    } catch (MalformedJsonException e) {
+                        throw new JSONException(e.toString());
+                    }
+                }
+            };
+
+    private HashSet<String> mKeys;
+
+    private GTaskResponseReader(String[] keys) {
+        mKeys = keys != null ? new HashSet<String>(Arrays.asList(keys)) : null;
+    }
+
+    public JSONObject parse(Reader reader) throws IOException, JSONException {
+        JsonReader jsonReader = newJsonReader(reader);
+        try {
+            return readObject(jsonReader, mKeys);
+        } catch (IllegalStateException e) {
+            throw new JSONException(e.toString());
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.toString());
+        }
+    }
+
+    private static JsonReader newJsonReader(Reader reader) {
+        JsonReader jsonReader = new JsonReader(reader);
+        // the responses are javascript rather than strict json
+        jsonReader.setLenient(true);
+        return jsonReader;
+    }
+
+    /**
+     * Skip the characters until the token is passed, return false if it's not found
+     */
+    private static boolean skipTo(Reader reader, String token) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == token.charAt(matched)) {
+                matched++;
+                if (matched == token.length()) {
+                    return true;
+                }
+            } else {
+                // the token has no repeated prefix, so a mismatch restarts the match
+                matched = c == token.charAt(0) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read an object keeping only the given names, all of them are kept if keys is null
+     */
+    private static JSONObject readObject(JsonReader reader, HashSet<String> keys)
+            throws IOException, JSONException {
+        JSONObject js = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (keys == null || keys.contains(name)) {
+                js.put(name, readValue(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return js;
+    }
+
+    /**
+     * Build the task from the fields of its object, the same ones
+     * {@link Task#setContentByRemoteJSON(JSONObject)} takes
+     */
+    private static void readTask(JsonReader reader, Task task) throws IOException,
+            JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (GTaskStringUtils.GTASK_JSON_ID.equals(name)) {
+                task.setGid(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_LAST_MODIFIED.equals(name)) {
+                task.setLastModified(reader.nextLong());
+            } else if (GTaskStringUtils.GTASK_JSON_NAME.equals(name)) {
+                task.setName(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_NOTES.equals(name)) {
+                task.setNotes(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_DELETED.equals(name)) {
+                task.setDeleted(reader.nextBoolean());
+            } else if (GTaskStringUtils.GTASK_JSON_COMPLETED.equals(name)) {
+                task.setCompleted(reader.nextBoolean());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (task.getGid() == null) {
+            throw new JSONException("task without id");
+        }
+    }
+
+    /**
+     * Reads the "tasks" array and the sync point of a response, the rest of it is skipped. No
+     * json object is built for the tasks, a large list costs only its tasks
+     */
+    private static class TaskListReader implements
+            GTaskTransport.ResponseParser<TaskListResponse> {
+        private final boolean mMeta;
+
+        public TaskListReader(boolean meta) {
+            mMeta = meta;
+        }
+
+        public TaskListResponse parse(Reader reader) throws IOException, JSONException {
+            JsonReader jsonReader = newJsonReader(reader);
+            try {
+                List<Task> tasks = null;
+                long latestSyncPoint = 0;
+                jsonReader.beginObject();
+                while (jsonReader.hasNext()) {
+                    String name = jsonReader.nextName();
+                    if (GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT.equals(name)) {
+                        latestSyncPoint = jsonReader.nextLong();
+                        continue;
+                    } else if (!GTaskStringUtils.GTASK_JSON_TASKS.equals(name)) {
+                        jsonReader.skipValue();
+                        continue;
+                    }
+                    tasks = new ArrayList<Task>();
+                    jsonReader.beginArray();
+                    while (jsonReader.hasNext()) {
+                        Task task = mMeta ? new MetaData() : new Task();
+                        readTask(jsonReader, task);
+                        tasks.add(task);
+                    }
+                    jsonReader.endArray();
+                }
+                jsonReader.endObject();
+                if (tasks == null) {
+                    throw new JSONException("no tasks in the response");
+                }
+                return new TaskListResponse(tasks, latestSyncPoint);
+            } catch (IllegalStateException e) {
+                throw new JSONException(e.toString());
+            } catch (NumberFormatException e) {
+                throw new JSONException(e.toString());
+            } catch (MalformedJsonException e) {
+                throw new JSONException(e.toString());
+            }
+        }
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray js = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            js.put(readValue(reader));
+        }
+        reader.endArray();
+        return js;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader, null);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                // ids and times are longs, keep them exact
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case STRING:
+                return reader.nextString();
+            default:
+                throw new JSONException("unexpected json token " + token);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The numbers of one sync run. The last runs are kept in a file of the app as a JSON array, the
+ * oldest first, see {@link #exportHistory(Context)}.
+ */
+public class GTaskSyncMetrics {
+    private static final String TAG = GTaskSyncMetrics.class.getSimpleName();
+
+    private static final String HISTORY_FILE_NAME = "sync_metrics.json";
+
+    /**
+     * Runs kept in the history
+     */
+    private static final int MAX_HISTORY_RUNS = 20;
+
+    /**
+     * The phases of the sync. Content sync includes the folder sync and the refresh of the
+     * sync ids, the commits are timed within the phases they happen in
+     */
+    public static final String PHASE_RECOVER = "recover";
+
+    public static final String PHASE_LOGIN = "login";
+
+    public static final String PHASE_INIT_LIST = "init_list";
+
+    public static final String PHASE_SYNC_FOLDER = "sync_folder";
+
+    public static final String PHASE_SYNC_CONTENT = "sync_content";
+
+    public static final String PHASE_REFRESH_SYNC_ID = "refresh_sync_id";
+
+    private static final String JSON_START_TIME = "start_time";
+
+    private static final String JSON_DURATION = "duration";
+
+    private static final String JSON_DELTA = "delta";
+
+    private static final String JSON_RESULT = "result";
+
+    private static final String JSON_PHASES = "phases";
+
+    private static final String JSON_REQUESTS = "requests";
+
+    private static final String JSON_REQUEST_TIME = "request_time";
+
+    private static final String JSON_BYTES_SENT = "bytes_sent";
+
+    private static final String JSON_BYTES_RECEIVED = "bytes_received";
+
+    private static final String JSON_PARSE_TIME = "parse_time";
+
+    private static final String JSON_COMMITS = "commits";
+
+    private static final String JSON_COMMIT_TIME = "commit_time";
+
+    private static final String JSON_DB_BATCHES = "db_batches";
+
+    private static final String JSON_DB_OPERATIONS = "db_operations";
+
+    private long mStartTime;
+
+    private long mDuration;
+
+    private boolean mDelta;
+
+    private int mResult;
+
+    private LinkedHashMap<String, Long> mPhaseTimes;
+
+    private long mRequestCount;
+
+    private long mRequestTime;
+
+    private long mBytesSent;
+
+    private long mBytesReceived;
+
+    private long mParseTime;
+
+    private int mCommitCount;
+
+    private long mCommitTime;
+
+    private int mDbBatchCount;
+
+    private int mDbOperationCount;
+
+    public GTaskSyncMetrics() {
+        mStartTime = System.currentTimeMillis();
+        mDuration = 0;
+        mDelta = false;
+        mResult = GTaskManager.STATE_SUCCESS;
+        mPhaseTimes = new LinkedHashMap<String, Long>();
+        mDbBatchCount = 0;
+        mDbOperationCount = 0;
+    }
+
+    /**
+     * Add the time elapsed since the start time to the phase
+     */
+    public void addPhaseTime(String phase, long startTime) {
+        long time = System.currentTimeMillis() - startTime;
+        Long total = mPhaseTimes.get(phase);
+        mPhaseTimes.put(phase, total != null ? total + time : time);
+    }
+
+    public void addDbWrites(int batches, int operations) {
+        mDbBatchCount += batches;
+        mDbOperationCount += operations;
+    }
+
+    /**
+     * Take the counters of the client and its transport and end the run
+     */
+    public void finish(GTaskClient client, boolean delta, int result) {
+        GTaskTransport transport = client.getTransport();
+        mDuration = System.currentTimeMillis() - mStartTime;
+        mDelta = delta;
+        mResult = result;
+        mRequestCount = transport.getRequestCount();
+        mRequestTime = transport.getRequestTime();
+        mBytesSent = transport.getBytesSent();
+        mBytesReceived = transport.getBytesReceived();
+        mParseTime = transport.getParseTime();
+        mCommitCount = client.getCommitCount();
+        mCommitTime = client.getCommitTime();
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject js = new JSONObject();
+        js.put(JSON_START_TIME, mStartTime);
+        js.put(JSON_DURATION, mDuration);
+        js.put(JSON_DELTA, mDelta);
+        js.put(JSON_RESULT, mResult);
+
+        JSONObject jsPhases = new JSONObject();
+        for (Map.Entry<String, Long> entry : mPhaseTimes.entrySet()) {
+            jsPhases.put(entry.getKey(), entry.getValue().longValue());
+        }
+        js.put(JSON_PHASES, jsPhases);
+
+        js.put(JSON_REQUESTS, mRequestCount);
+        js.put(JSON_REQUEST_TIME, mRequestTime);
+        js.put(JSON_BYTES_SENT, mBytesSent);
+        js.put(JSON_BYTES_RECEIVED, mBytesReceived);
+        js.put(JSON_PARSE_TIME, mParseTime);
+        js.put(JSON_COMMITS, mCommitCount);
+        js.put(JSON_COMMIT_TIME, mCommitTime);
+        js.put(JSON_DB_BATCHES, mDbBatchCount);
+        js.put(JSON_DB_OPERATIONS, mDbOperationCount);
+        return js;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return toJSON().toString();
+        } catch (JSONException e) {
+            return super.toString();
+        }
+    }
+
+    /**
+     * Append the run to the history, the oldest runs are dropped
+     */
+    public static synchronized void save(Context context, GTaskSyncMetrics metrics) {
+        try {
+            JSONArray history = readHistory(context);
+            JSONArray kept = new JSONArray();
+            for (int i = Math.max(0, history.length() - MAX_HISTORY_RUNS + 1); i < history
+                    .length(); i++) {
+                kept.put(history.get(i));
+            }
+            kept.put(metrics.toJSON());
+
+            FileOutputStream output = context.openFileOutput(HISTORY_FILE_NAME,
+                    Context.MODE_PRIVATE);
+            try {
+                output.write(kept.toString().getBytes("UTF-8"));
+            } finally {
+                output.close();
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save sync metrics: " + e.toString());
+        }
+    }
+
+    /**
+     * The last runs as a JSON array, the oldest first
+     */
+    public static synchronized String exportHistory(Context context) {
+        try {
+            return readHistory(context).toString(2);
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            return "[]";
+        }
+    }
+
+    private static JSONArray readHistory(Context context) {
+        FileInputStream input = null;
+        try {
+            input = context.openFileInput(HISTORY_FILE_NAME);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return new JSONArray(output.toString("UTF-8"));
+        } catch (FileNotFoundException e) {
+            return new JSONArray();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read sync metrics: " + e.toString());
+            return new JSONArray();
+        } catch (JSONException e) {
+            // a broken history is started again
+            Log.e(TAG, e.toString());
+            return new JSONArray();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e.toString());
+                }
+            }
+        }
+    }
+}
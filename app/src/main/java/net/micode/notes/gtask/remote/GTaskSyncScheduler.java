@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+/**
+ * Starts a sync in the background when the notes are changed locally. A burst of edits results
+ * in one sync, the syncs are kept apart by a minimum interval and are retried with exponential
+ * backoff after network failures. The changes made during a sync are synced once it finishes.
+ * All the methods are called on the main thread, the local changes are queried on another one.
+ */
+public class GTaskSyncScheduler {
+    private static final String TAG = GTaskSyncScheduler.class.getSimpleName();
+
+    /**
+     * The sync starts once the notes haven't been changed for this long
+     */
+    private static final long DEBOUNCE_MS = 30 * 1000;
+
+    /**
+     * Keeps editing from delaying the sync for longer than this
+     */
+    private static final long MAX_DEBOUNCE_MS = 5 * 60 * 1000;
+
+    /**
+     * The syncs are kept this far apart, it's also the first delay of the retries
+     */
+    private static final long MIN_INTERVAL_MS = 5 * 60 * 1000;
+
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    private static final String LOCAL_CHANGES_SELECTION = NoteColumns.LOCAL_MODIFIED + "=1 AND "
+            + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM;
+
+    private static GTaskSyncScheduler mInstance = null;
+
+    private Context mContext;
+
+    private Handler mHandler;
+
+    private ContentObserver mObserver;
+
+    private boolean mStarted;
+
+    /**
+     * The uptime of the first change not synced yet, 0 if there is none
+     */
+    private long mFirstRequestTime;
+
+    private long mLastSyncTime;
+
+    private long mRetryTime;
+
+    private int mFailureCount;
+
+    /**
+     * The notes have been changed while a sync is running
+     */
+    private boolean mPending;
+
+    /**
+     * The local changes are being queried before a sync
+     */
+    private boolean mChecking;
+
+    private Runnable mSyncRunnable = new Runnable() {
+        public void run() {
+            runSync();
+        }
+    };
+
+    private GTaskSyncScheduler(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                requestSync();
+            }
+        };
+        mStarted = false;
+        mFirstRequestTime = 0;
+        mLastSyncTime = 0;
+        mRetryTime = 0;
+        mFailureCount = 0;
+        mPending = false;
+        mChecking = false;
+    }
+
+    public static synchronized GTaskSyncScheduler getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new GTaskSyncScheduler(context);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Watch the changes of the notes, the changes left by last run of the app are synced too
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_NOTE_URI, true,
+                mObserver);
+        requestSync();
+    }
+
+    /**
+     * Sync after the debounce, the requests made while a sync is running are coalesced into one
+     * sync after it
+     */
+    public void requestSync() {
+        if (!isSyncAccountSet()) {
+            return;
+        }
+        if (GTaskSyncService.isSyncing()) {
+            mPending = true;
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (mFirstRequestTime == 0) {
+            mFirstRequestTime = now;
+        }
+        long time = Math.min(now + DEBOUNCE_MS, mFirstRequestTime + MAX_DEBOUNCE_MS);
+        if (mLastSyncTime > 0) {
+            time = Math.max(time, mLastSyncTime + MIN_INTERVAL_MS);
+        }
+        time = Math.max(time, mRetryTime);
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.postAtTime(mSyncRunnable, time);
+    }
+
+    /**
+     * Called when any sync finishes, including the ones started by the user
+     */
+    public void onSyncFinished(int result) {
+        long now = SystemClock.uptimeMillis();
+        mLastSyncTime = now;
+        if (result == GTaskManager.STATE_NETWORK_ERROR) {
+            long backoff = MIN_INTERVAL_MS << Math.min(mFailureCount, 16);
+            mFailureCount++;
+            mRetryTime = now + Math.min(backoff, MAX_BACKOFF_MS);
+            Log.d(TAG, "sync failed " + mFailureCount + " times, retry in "
+                    + (mRetryTime - now) + "ms");
+            mPending = true;
+        } else if (result == GTaskManager.STATE_SUCCESS) {
+            mFailureCount = 0;
+            mRetryTime = 0;
+        }
+
+        if (mPending) {
+            mPending = false;
+            mFirstRequestTime = 0;
+            mHandler.removeCallbacks(mSyncRunnable);
+            mHandler.postAtTime(mSyncRunnable, Math.max(now + MIN_INTERVAL_MS, mRetryTime));
+        }
+    }
+
+    private void runSync() {
+        mFirstRequestTime = 0;
+        if (GTaskSyncService.isSyncing()) {
+            mPending = true;
+            return;
+        }
+        if (!isSyncAccountSet() || mChecking) {
+            return;
+        }
+
+        // the sync writes the notes too, there is nothing to send if they are all synced
+        mChecking = true;
+        new Thread(new Runnable() {
+            public void run() {
+                final boolean changed = hasLocalChanges();
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mChecking = false;
+                        if (changed) {
+                            startSync();
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private void startSync() {
+        if (GTaskSyncService.isSyncing()) {
+            mPending = true;
+            return;
+        }
+        Log.d(TAG, "start background sync");
+        GTaskSyncService.startBackgroundSync(mContext);
+    }
+
+    private boolean isSyncAccountSet() {
+        return !TextUtils.isEmpty(NotesPreferenceActivity.getSyncAccountName(mContext));
+    }
+
+    /**
+     * Called off the main thread, the first changed note is enough
+     */
+    private boolean hasLocalChanges() {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, new String[] {
+            NoteColumns.ID
+        }, LOCAL_CHANGES_SELECTION, null, NoteColumns.ID + " LIMIT 1");
+        if (c == null) {
+            Log.w(TAG, "failed to query local changes");
+            return false;
+        }
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -32,6 +32,11 @@ public class GTaskSyncService extends Service {
 
     public final static int ACTION_INVALID = 2;
 
+    /**
+     * The sync is started by the app rather than by the user, it shows no progress
+     */
+    public final static String EXTRA_BACKGROUND = "sync_background";
+
     public final static String GTASK_SERVICE_BROADCAST_NAME = "net.micode.notes.gtask.remote.gtask_sync_service";
 
     public final static String GTASK_SERVICE_BROADCAST_IS_SYNCING = "isSyncing";
@@ -42,15 +47,16 @@ public class GTaskSyncService extends Service {
 
     private static String mSyncProgress = "";
 
-    private void startSync() {
+    private void startSync(boolean background) {
         if (mSyncTask == null) {
-            mSyncTask = new GTaskASyncTask(this, new GTaskASyncTask.OnCompleteListener() {
-                public void onComplete() {
-                    mSyncTask = null;
-                    sendBroadcast("");
-                    stopSelf();
-                }
-            });
+            mSyncTask = new GTaskASyncTask(this, background,
+                    new GTaskASyncTask.OnCompleteListener() {
+                        public void onComplete() {
+                            mSyncTask = null;
+                            sendBroadcast("");
+                            stopSelf();
+                        }
+                    });
             sendBroadcast("");
             mSyncTask.execute();
         }
@@ -73,7 +79,7 @@ public class GTaskSyncService extends Service {
         if (bundle != null && bundle.containsKey(ACTION_STRING_NAME)) {
             switch (bundle.getInt(ACTION_STRING_NAME, ACTION_INVALID)) {
                 case ACTION_START_SYNC:
-                    startSync();
+                    startSync(bundle.getBoolean(EXTRA_BACKGROUND, false));
                     break;
                 case ACTION_CANCEL_SYNC:
                     cancelSync();
@@ -112,6 +118,24 @@ public class GTaskSyncService extends Service {
         activity.startService(intent);
     }
 
+    /**
+     * Reconcile all the notes and tasks instead of only the changed ones
+     */
+    public static void startFullSync(Activity activity) {
+        GTaskManager.getInstance().requestFullSync(activity);
+        startSync(activity);
+    }
+
+    /**
+     * Sync without an activity, the login fails if the account needs the user's confirmation
+     */
+    public static void startBackgroundSync(Context context) {
+        Intent intent = new Intent(context, GTaskSyncService.class);
+        intent.putExtra(GTaskSyncService.ACTION_STRING_NAME, GTaskSyncService.ACTION_START_SYNC);
+        intent.putExtra(GTaskSyncService.EXTRA_BACKGROUND, true);
+        context.startService(intent);
+    }
+
     public static void cancelSync(Context context) {
         Intent intent = new Intent(context, GTaskSyncService.class);
         intent.putExtra(GTaskSyncService.ACTION_STRING_NAME, GTaskSyncService.ACTION_CANCEL_SYNC);
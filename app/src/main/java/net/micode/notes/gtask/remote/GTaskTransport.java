@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The HTTP layer under {@link GTaskClient}. It keeps the cookies of the login and must be safe
+ * to use from several threads, since task lists are downloaded concurrently.
+ */
+public interface GTaskTransport {
+    /**
+     * Reads the response body as it is received
+     */
+    interface ResponseParser<T> {
+        T parse(Reader reader) throws IOException, JSONException;
+    }
+
+    /**
+     * Get the url and parse the response body, the part not read by the parser is discarded
+     */
+    <T> T get(String url, ResponseParser<T> parser) throws IOException, JSONException;
+
+    /**
+     * Post the form to the url and parse the response body
+     */
+    <T> T post(String url, String name, String value, ResponseParser<T> parser)
+            throws IOException, JSONException;
+
+    /**
+     * Whether there is a cookie whose name contains the given string
+     */
+    boolean hasCookie(String name);
+
+    /**
+     * Drop the cookies before logging in again, the connections are kept
+     */
+    void clearCookies();
+
+    void setTimeouts(int connectTimeoutMs, int socketTimeoutMs);
+
+    /**
+     * Requests made since the last {@link #resetMetrics()}
+     */
+    long getRequestCount();
+
+    /**
+     * Total time in milliseconds spent on the requests
+     */
+    long getRequestTime();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * Total time in milliseconds spent in the response parsers. They read the body as it's
+     * received, so it includes the wait for the body
+     */
+    long getParseTime();
+
+    void resetMetrics();
+}
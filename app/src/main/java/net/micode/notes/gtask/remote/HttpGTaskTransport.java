@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The transport over a pooled http client. The client lives as long as the process, so the
+ * connections are kept alive and reused across syncs. Only the HttpClient 4.0 API is used,
+ * it's the version in the platform which shadows the newer jars.
+ */
+public class HttpGTaskTransport implements GTaskTransport {
+    private static final String TAG = HttpGTaskTransport.class.getSimpleName();
+
+    /**
+     * An idle connection is closed after this long even if the server would keep it longer
+     */
+    private static final long MAX_KEEP_ALIVE_MS = 60 * 1000;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+
+    private static final int DEFAULT_SOCKET_TIMEOUT_MS = 15000;
+
+    private final DefaultHttpClient mHttpClient;
+
+    private final BasicCookieStore mCookieStore;
+
+    private volatile boolean mGzipRequests;
+
+    private long mRequestCount;
+
+    private long mRequestTime;
+
+    private long mBytesSent;
+
+    private long mBytesReceived;
+
+    private long mParseTime;
+
+    public HttpGTaskTransport(int maxConnections) {
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        setTimeouts(params, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        mCookieStore = new BasicCookieStore();
+        mHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params,
+                schemeRegistry), params);
+        mHttpClient.setCookieStore(mCookieStore);
+        mHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy mDefaultStrategy =
+                    new DefaultConnectionKeepAliveStrategy();
+
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = mDefaultStrategy.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, MAX_KEEP_ALIVE_MS) : MAX_KEEP_ALIVE_MS;
+            }
+        });
+        mGzipRequests = true;
+    }
+
+    public void setTimeouts(int connectTimeoutMs, int socketTimeoutMs) {
+        synchronized (mHttpClient) {
+            setTimeouts(mHttpClient.getParams(), connectTimeoutMs, socketTimeoutMs);
+        }
+    }
+
+    /**
+     * The wait for a pooled connection is bounded by the connect timeout
+     */
+    private static void setTimeouts(HttpParams params, int connectTimeoutMs,
+            int socketTimeoutMs) {
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMs);
+        HttpConnectionParams.setSoTimeout(params, socketTimeoutMs);
+        ConnManagerParams.setTimeout(params, connectTimeoutMs);
+    }
+
+    public <T> T get(String url, ResponseParser<T> parser) throws IOException, JSONException {
+        HttpGet httpGet = new HttpGet(url);
+        return execute(httpGet, 0, false, parser);
+    }
+
+    public <T> T post(String url, String name, String value, ResponseParser<T> parser)
+            throws IOException, JSONException {
+        boolean gzip = mGzipRequests;
+        HttpPost httpPost = createHttpPost(url, name, value, gzip);
+        try {
+            return execute(httpPost, httpPost.getEntity().getContentLength(), gzip, parser);
+        } catch (HttpStatusException e) {
+            if (!gzip) {
+                throw e;
+            }
+            // the server doesn't take compressed requests, send them as they are from now on
+            Log.w(TAG, "compressed request refused: " + e.getMessage());
+            mGzipRequests = false;
+            httpPost = createHttpPost(url, name, value, false);
+            return execute(httpPost, httpPost.getEntity().getContentLength(), false, parser);
+        }
+    }
+
+    public boolean hasCookie(String name) {
+        for (Cookie cookie : mCookieStore.getCookies()) {
+            if (cookie.getName().contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clearCookies() {
+        mCookieStore.clear();
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getRequestTime() {
+        return mRequestTime;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public synchronized long getParseTime() {
+        return mParseTime;
+    }
+
+    public synchronized void resetMetrics() {
+        mRequestCount = 0;
+        mRequestTime = 0;
+        mBytesSent = 0;
+        mBytesReceived = 0;
+        mParseTime = 0;
+    }
+
+    private HttpPost createHttpPost(String url, String name, String value, boolean gzip)
+            throws IOException {
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setHeader("AT", "1");
+
+        byte[] body = EntityUtils.toByteArray(new UrlEncodedFormEntity(Collections
+                .singletonList(new BasicNameValuePair(name, value)), "UTF-8"));
+        if (gzip) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(body.length / 4 + 64);
+            GZIPOutputStream gzipOutput = new GZIPOutputStream(output);
+            try {
+                gzipOutput.write(body);
+            } finally {
+                gzipOutput.close();
+            }
+            body = output.toByteArray();
+            httpPost.setHeader("Content-Encoding", "gzip");
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType("application/x-www-form-urlencoded; charset=UTF-8");
+        httpPost.setEntity(entity);
+        return httpPost;
+    }
+
+    /**
+     * The response is parsed while it's received and always consumed, so the connection can go
+     * back to the pool. A request failed halfway is aborted and its connection is dropped
+     */
+    private <T> T execute(HttpRequestBase request, long bytesSent, boolean gzip,
+            ResponseParser<T> parser) throws IOException, JSONException {
+        request.setHeader("Accept-Encoding", "gzip, deflate");
+        closeStaleConnections();
+        long start = System.currentTimeMillis();
+        HttpResponse response = mHttpClient.execute(request);
+        CountingInputStream input = null;
+        boolean consumed = false;
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (gzip && (status == HttpStatus.SC_BAD_REQUEST
+                    || status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE)) {
+                throw new HttpStatusException(response.getStatusLine().toString());
+            }
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("no response content, status " + status);
+            }
+            input = new CountingInputStream(getContent(entity));
+            long parseStart = System.currentTimeMillis();
+            T result = parser.parse(new BufferedReader(new InputStreamReader(input, "UTF-8")));
+            addParseTime(System.currentTimeMillis() - parseStart);
+            // read out the rest so the connection can be reused
+            entity.consumeContent();
+            consumed = true;
+            return result;
+        } finally {
+            if (!consumed) {
+                request.abort();
+            }
+            long time = System.currentTimeMillis() - start;
+            long bytesReceived = input != null ? input.getCount() : 0;
+            addMetrics(time, bytesSent, bytesReceived);
+            Log.d(TAG, request.getMethod() + " " + response.getStatusLine().getStatusCode()
+                    + ", " + bytesSent + "/" + bytesReceived + " bytes in " + time + "ms");
+        }
+    }
+
+    /**
+     * The 4.0 client doesn't decompress the responses, it's done here
+     */
+    private static InputStream getContent(HttpEntity entity) throws IOException {
+        Header contentEncoding = entity.getContentEncoding();
+        String encoding = contentEncoding != null ? contentEncoding.getValue() : null;
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(entity.getContent());
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(entity.getContent(), new Inflater(true));
+        }
+        return entity.getContent();
+    }
+
+    /**
+     * The 4.0 pool has no eviction thread, the connections expired or idle for too long are
+     * closed before each request instead
+     */
+    private void closeStaleConnections() {
+        ClientConnectionManager connectionManager = mHttpClient.getConnectionManager();
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(MAX_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void addMetrics(long time, long bytesSent, long bytesReceived) {
+        mRequestCount++;
+        mRequestTime += time;
+        mBytesSent += bytesSent;
+        mBytesReceived += bytesReceived;
+    }
+
+    private synchronized void addParseTime(long time) {
+        mParseTime += time;
+    }
+
+    /**
+     * Counts the bytes of the decompressed response
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+    }
+
+    private static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 4961472207430812341L;
+
+        public HttpStatusException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.TaskList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The task lists by name. A name taken by several lists maps to the first one added, and to
+ * the next one once the first is renamed.
+ */
+class TaskListNameIndex {
+    private HashMap<String, ArrayList<TaskList>> mLists;
+
+    public TaskListNameIndex() {
+        mLists = new HashMap<String, ArrayList<TaskList>>();
+    }
+
+    public void add(TaskList tasklist) {
+        if (tasklist.getName() == null) {
+            return;
+        }
+        ArrayList<TaskList> lists = mLists.get(tasklist.getName());
+        if (lists == null) {
+            lists = new ArrayList<TaskList>(1);
+            mLists.put(tasklist.getName(), lists);
+        }
+        if (!lists.contains(tasklist)) {
+            lists.add(tasklist);
+        }
+    }
+
+    /**
+     * Returns null if no list has the name
+     */
+    public TaskList get(String name) {
+        ArrayList<TaskList> lists = mLists.get(name);
+        return lists != null ? lists.get(0) : null;
+    }
+
+    /**
+     * Index the list by its new name, the list has been renamed from the old name
+     */
+    public void rename(TaskList tasklist, String oldName) {
+        if (oldName != null && oldName.equals(tasklist.getName())) {
+            return;
+        }
+        ArrayList<TaskList> lists = oldName != null ? mLists.get(oldName) : null;
+        if (lists != null && lists.remove(tasklist) && lists.isEmpty()) {
+            mLists.remove(oldName);
+        }
+        add(tasklist);
+    }
+
+    public void clear() {
+        mLists.clear();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line based three-way merge of a note's text. The changes of both sides against the base are
+ * found with Myers' diff, the changes in different places are all kept. If both sides changed
+ * the same lines differently there is no merge, the caller decides which text to keep.
+ */
+public class TextMerger {
+    /**
+     * The diff gives up beyond this many changed lines, the texts are not merged then. It
+     * bounds the memory of the diff, which grows with the square of the changed lines
+     */
+    private static final int MAX_EDIT_DISTANCE = 500;
+
+    private static final String LINE_SEPARATOR = "\n";
+
+    /**
+     * Returns the merged text, or null if the changes conflict or are too many to diff
+     */
+    public static String merge(String base, String local, String remote) {
+        if (local.equals(remote) || base.equals(remote)) {
+            return local;
+        }
+        if (base.equals(local)) {
+            return remote;
+        }
+
+        // compare the lines by numbers, equal lines get the same number
+        HashMap<String, Integer> lineIds = new HashMap<String, Integer>();
+        int[] baseLines = toLineIds(base, lineIds);
+        int[] localLines = toLineIds(local, lineIds);
+        int[] remoteLines = toLineIds(remote, lineIds);
+        String[] lines = new String[lineIds.size()];
+        for (Map.Entry<String, Integer> entry : lineIds.entrySet()) {
+            lines[entry.getValue()] = entry.getKey();
+        }
+
+        int[] localMatch = match(baseLines, localLines);
+        int[] remoteMatch = match(baseLines, remoteLines);
+        if (localMatch == null || remoteMatch == null) {
+            return null;
+        }
+
+        ArrayList<String> merged = new ArrayList<String>();
+
+        int b = 0, l = 0, r = 0;
+        while (b < baseLines.length || l < localLines.length || r < remoteLines.length) {
+            if (b < baseLines.length && localMatch[b] == l && remoteMatch[b] == r) {
+                // unchanged on both sides
+                merged.add(lines[baseLines[b]]);
+                b++;
+                l++;
+                r++;
+                continue;
+            }
+
+            // the changed chunk ends at the next base line kept by both sides
+            int b2 = b;
+            while (b2 < baseLines.length && (localMatch[b2] < 0 || remoteMatch[b2] < 0)) {
+                b2++;
+            }
+            int l2 = b2 < baseLines.length ? localMatch[b2] : localLines.length;
+            int r2 = b2 < baseLines.length ? remoteMatch[b2] : remoteLines.length;
+
+            if (equals(baseLines, b, b2, localLines, l, l2)) {
+                append(merged, lines, remoteLines, r, r2);
+            } else if (equals(baseLines, b, b2, remoteLines, r, r2)
+                    || equals(localLines, l, l2, remoteLines, r, r2)) {
+                append(merged, lines, localLines, l, l2);
+            } else {
+                return null;
+            }
+            b = b2;
+            l = l2;
+            r = r2;
+        }
+        return join(merged);
+    }
+
+    /**
+     * The lines as one text, split again the same way by the merge
+     */
+    static String join(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                text.append(LINE_SEPARATOR);
+            }
+            text.append(lines.get(i));
+        }
+        return text.toString();
+    }
+
+    private static int[] toLineIds(String text, HashMap<String, Integer> lineIds) {
+        String[] lines = text.split(LINE_SEPARATOR, -1);
+        int[] ids = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            Integer id = lineIds.get(lines[i]);
+            if (id == null) {
+                id = lineIds.size();
+                lineIds.put(lines[i], id);
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static void append(ArrayList<String> merged, String[] lines, int[] ids, int from,
+            int to) {
+        for (int i = from; i < to; i++) {
+            merged.add(lines[ids[i]]);
+        }
+    }
+
+    private static boolean equals(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        if (aTo - aFrom != bTo - bFrom) {
+            return false;
+        }
+        for (int i = 0; i < aTo - aFrom; i++) {
+            if (a[aFrom + i] != b[bFrom + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the longest common subsequence of the lines with Myers' diff. Returns the index in b
+     * of each line of a, -1 if the line is not kept, or null if there are too many changes
+     */
+    private static int[] match(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        Arrays.fill(result, -1);
+
+        // the common head and tail are matched directly, only the middle is diffed
+        int head = 0;
+        while (head < a.length && head < b.length && a[head] == b[head]) {
+            result[head] = head;
+            head++;
+        }
+        int tail = 0;
+        while (tail < a.length - head && tail < b.length - head
+                && a[a.length - 1 - tail] == b[b.length - 1 - tail]) {
+            result[a.length - 1 - tail] = b.length - 1 - tail;
+            tail++;
+        }
+        int n = a.length - head - tail;
+        int m = b.length - head - tail;
+        if (n == 0 || m == 0) {
+            return result;
+        }
+
+        // v[k] is the furthest x on diagonal k = x - y, the v of each step is kept to trace
+        // the path back
+        int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        ArrayList<int[]> trace = new ArrayList<int[]>();
+        for (int d = 0; d <= max; d++) {
+            int[] vd = new int[2 * d + 1];
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[head + x] == b[head + y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                vd[k + d] = x;
+                if (x >= n && y >= m) {
+                    trace.add(vd);
+                    traceBack(trace, a, b, head, n, m, result);
+                    return result;
+                }
+            }
+            trace.add(vd);
+        }
+        return null;
+    }
+
+    private static void traceBack(ArrayList<int[]> trace, int[] a, int[] b, int head, int n,
+            int m, int[] result) {
+        int x = n;
+        int y = m;
+        for (int d = trace.size() - 1; d > 0; d--) {
+            int[] prev = trace.get(d - 1);
+            int k = x - y;
+            int prevK;
+            if (k == -d || (k != d && prev[k - 1 + d - 1] < prev[k + 1 + d - 1])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevX = prev[prevK + d - 1];
+            int prevY = prevX - prevK;
+            while (x > prevX && y > prevY) {
+                x--;
+                y--;
+                result[head + x] = head + y;
+            }
+            x = prevX;
+            y = prevY;
+        }
+        while (x > 0 && y > 0) {
+            x--;
+            y--;
+            result[head + x] = head + y;
+        }
+    }
+}
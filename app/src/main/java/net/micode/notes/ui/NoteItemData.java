@@ -23,7 +23,6 @@ import android.text.TextUtils;
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.tool.DataUtils;
 
 
 public class NoteItemData {
@@ -36,10 +35,11 @@ public class NoteItemData {
         NoteColumns.MODIFIED_DATE,
         NoteColumns.NOTES_COUNT,
         NoteColumns.PARENT_ID,
-        NoteColumns.SNIPPET,
+        NoteColumns.PREVIEW,
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        Notes.LIST_COLUMN_PHONE_NUMBER,
     };
 
     private static final int ID_COLUMN                    = 0;
@@ -50,10 +50,11 @@ public class NoteItemData {
     private static final int MODIFIED_DATE_COLUMN         = 5;
     private static final int NOTES_COUNT_COLUMN           = 6;
     private static final int PARENT_ID_COLUMN             = 7;
-    private static final int SNIPPET_COLUMN               = 8;
+    private static final int PREVIEW_COLUMN               = 8;
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int PHONE_NUMBER_COLUMN          = 12;
 
     private long mId;
     private long mAlertDate;
@@ -85,16 +86,14 @@ public class NoteItemData {
         mModifiedDate = cursor.getLong(MODIFIED_DATE_COLUMN);
         mNotesCount = cursor.getInt(NOTES_COUNT_COLUMN);
         mParentId = cursor.getLong(PARENT_ID_COLUMN);
-        mSnippet = cursor.getString(SNIPPET_COLUMN);
-        mSnippet = mSnippet.replace(NoteEditActivity.TAG_CHECKED, "").replace(
-                NoteEditActivity.TAG_UNCHECKED, "");
+        mSnippet = cursor.getString(PREVIEW_COLUMN);
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
 
         mPhoneNumber = "";
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
+            mPhoneNumber = cursor.getString(PHONE_NUMBER_COLUMN);
             if (!TextUtils.isEmpty(mPhoneNumber)) {
                 mName = Contact.getContact(context, mPhoneNumber);
                 if (mName == null) {
@@ -221,4 +220,16 @@ public class NoteItemData {
     public static int getNoteType(Cursor cursor) {
         return cursor.getInt(TYPE_COLUMN);
     }
+
+    public static String getPhoneNumber(Cursor cursor) {
+        return cursor.getString(PHONE_NUMBER_COLUMN);
+    }
+
+    /**
+     * The key of the row to load the next page after it, see {@link Notes#PARAM_AFTER}
+     */
+    public static String getPageKey(Cursor cursor) {
+        return cursor.getInt(TYPE_COLUMN) + "," + cursor.getLong(MODIFIED_DATE_COLUMN) + ","
+                + cursor.getLong(ID_COLUMN);
+    }
 }
@@ -28,6 +28,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -61,8 +62,10 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.GTaskSyncScheduler;
 import net.micode.notes.gtask.remote.GTaskSyncService;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.tool.BackupUtils;
@@ -76,6 +79,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashSet;
 
 public class NotesListActivity extends Activity implements OnClickListener, OnItemLongClickListener {
@@ -83,6 +87,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
 
+    private static final int FOLDER_NOTE_PAGE_QUERY_TOKEN = 2;
+
+    private static final int FOLDER_NOTE_COUNT_QUERY_TOKEN = 3;
+
+    private static final int NOTES_LIST_PAGE_SIZE = 100;
+
     private static final int MENU_FOLDER_DELETE = 0;
 
     private static final int MENU_FOLDER_VIEW = 1;
@@ -125,13 +135,6 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private NoteItemData mFocusNoteDataItem;
 
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
-
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
-
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
 
@@ -145,6 +148,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
          * Insert an introduction when user firstly use this application
          */
         setAppInfoFromRawRes();
+
+        GTaskSyncScheduler.getInstance(this).start();
     }
 
     @Override
@@ -219,6 +224,19 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
         mNotesListView.setOnItemLongClickListener(this);
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnLoadPageListener(new NotesListAdapter.OnLoadPageListener() {
+            public void onLoadPage(String after) {
+                mBackgroundQueryHandler.startQuery(FOLDER_NOTE_PAGE_QUERY_TOKEN, after,
+                        buildNotesListUri(after, NOTES_LIST_PAGE_SIZE), NoteItemData.PROJECTION,
+                        null, null, null);
+            }
+
+            public void onReloadPages(int count) {
+                int visibleCount = mNotesListView.getLastVisiblePosition() + 1;
+                startAsyncNotesListQuery(Math.max(Math.min(count, visibleCount),
+                        NOTES_LIST_PAGE_SIZE));
+            }
+        });
         mNotesListView.setAdapter(mNotesListAdapter);
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
@@ -409,12 +427,35 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
 
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
-                    String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+        startAsyncNotesListQuery(NOTES_LIST_PAGE_SIZE);
+    }
+
+    /**
+     * Query the first rows of current folder, the following pages are loaded when the list is
+     * scrolled to them. A reload not started yet is replaced, so a burst of changes results in
+     * one query
+     */
+    private void startAsyncNotesListQuery(int limit) {
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_LIST_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_PAGE_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_COUNT_QUERY_TOKEN);
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, limit,
+                buildNotesListUri(null, limit), NoteItemData.PROJECTION, null, null, null);
+        // only some of the notes are loaded, selecting all of them needs their count
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_COUNT_QUERY_TOKEN, mCurrentFolderId,
+                Notes.CONTENT_NOTE_URI, new String[] { "COUNT(*)" },
+                NoteColumns.PARENT_ID + "=? AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE,
+                new String[] { String.valueOf(mCurrentFolderId) }, null);
+    }
+
+    private Uri buildNotesListUri(String after, int limit) {
+        Uri.Builder builder = Notes.CONTENT_NOTE_LIST_URI.buildUpon();
+        builder.appendQueryParameter(Notes.PARAM_FOLDER, String.valueOf(mCurrentFolderId));
+        builder.appendQueryParameter(Notes.PARAM_LIMIT, String.valueOf(limit));
+        if (after != null) {
+            builder.appendQueryParameter(Notes.PARAM_AFTER, after);
+        }
+        return builder.build();
     }
 
     private final class BackgroundQueryHandler extends AsyncQueryHandler {
@@ -426,7 +467,32 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             switch (token) {
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
+                    final Cursor firstPage = cursor;
+                    final int limit = (Integer) cookie;
+                    prefetchContacts(cursor, new Runnable() {
+                        public void run() {
+                            mNotesListAdapter.changePages(firstPage, limit);
+                        }
+                    });
+                    break;
+                case FOLDER_NOTE_PAGE_QUERY_TOKEN:
+                    final Cursor page = cursor;
+                    final String after = (String) cookie;
+                    prefetchContacts(cursor, new Runnable() {
+                        public void run() {
+                            mNotesListAdapter.appendPage(after, page, NOTES_LIST_PAGE_SIZE);
+                        }
+                    });
+                    break;
+                case FOLDER_NOTE_COUNT_QUERY_TOKEN:
+                    if (cursor != null) {
+                        if (cursor.moveToFirst() && (Long) cookie == mCurrentFolderId) {
+                            mNotesListAdapter.setFolder(mCurrentFolderId, cursor.getInt(0));
+                        }
+                        cursor.close();
+                    } else {
+                        Log.e(TAG, "Query notes count failed");
+                    }
                     break;
                 case FOLDER_LIST_QUERY_TOKEN:
                     if (cursor != null && cursor.getCount() > 0) {
@@ -441,6 +507,40 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         }
     }
 
+    /**
+     * Load the contact names of the call notes before showing them, so binding the rows
+     * needs no query for contacts. The cursor is dropped if the folder has been changed.
+     */
+    private void prefetchContacts(final Cursor cursor, final Runnable onPrefetched) {
+        if (cursor == null || mCurrentFolderId != Notes.ID_CALL_RECORD_FOLDER) {
+            onPrefetched.run();
+            return;
+        }
+
+        final long folderId = mCurrentFolderId;
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                ArrayList<String> numbers = new ArrayList<String>();
+                cursor.moveToPosition(-1);
+                while (cursor.moveToNext()) {
+                    numbers.add(NoteItemData.getPhoneNumber(cursor));
+                }
+                Contact.prefetchContacts(NotesListActivity.this, numbers);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (folderId == mCurrentFolderId) {
+                    onPrefetched.run();
+                } else {
+                    cursor.close();
+                }
+            }
+        }.execute();
+    }
+
     private void showFolderListMenu(Cursor cursor) {
         AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
         builder.setTitle(R.string.menu_title_select_folder);
@@ -448,15 +548,26 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         builder.setAdapter(adapter, new DialogInterface.OnClickListener() {
 
             public void onClick(DialogInterface dialog, int which) {
-                DataUtils.batchMoveToFolder(mContentResolver,
-                        mNotesListAdapter.getSelectedItemIds(), adapter.getItemId(which));
+                final long folderId = adapter.getItemId(which);
                 Toast.makeText(
                         NotesListActivity.this,
                         getString(R.string.format_move_notes_to_folder,
                                 mNotesListAdapter.getSelectedCount(),
                                 adapter.getFolderName(NotesListActivity.this, which)),
                         Toast.LENGTH_SHORT).show();
-                mModeCallBack.finishActionMode();
+                // the selected notes are queried if all are selected
+                new AsyncTask<Void, Void, Void>() {
+                    protected Void doInBackground(Void... unused) {
+                        DataUtils.batchMoveToFolder(mContentResolver,
+                                mNotesListAdapter.getSelectedItemIds(), folderId);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onPostExecute(Void result) {
+                        mModeCallBack.finishActionMode();
+                    }
+                }.execute();
             }
         });
         builder.show();
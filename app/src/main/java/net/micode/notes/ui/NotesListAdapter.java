@@ -18,36 +18,134 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
 
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 
 public class NotesListAdapter extends CursorAdapter {
     private static final String TAG = "NotesListAdapter";
     private Context mContext;
-    private HashMap<Integer, Boolean> mSelectedIndex;
     private int mNotesCount;
     private boolean mChoiceMode;
 
+    /**
+     * The selection is kept by note ids, so it holds the notes of the pages not loaded yet.
+     * With all selected the ids are the unchecked notes, otherwise the checked ones.
+     */
+    private boolean mAllSelected;
+    private HashSet<Long> mToggledIds;
+    private long mFolderId;
+
+    /**
+     * Start loading the next page when the list is scrolled this close to the last loaded row
+     */
+    private static final int PAGE_PREFETCH_DISTANCE = 20;
+
+    private OnLoadPageListener mOnLoadPageListener;
+    private boolean mHasMorePages;
+    private boolean mPageLoading;
+
     public static class AppWidgetAttribute {
         public int widgetId;
         public int widgetType;
     };
 
+    public interface OnLoadPageListener {
+        /**
+         * Load the page following the row of the key, the result should be passed to
+         * {@link NotesListAdapter#appendPage}
+         */
+        void onLoadPage(String after);
+
+        /**
+         * The content has changed, count is the rows loaded. Reload the rows down to the ones
+         * on screen and pass the result to {@link NotesListAdapter#changePages}, the rows
+         * after them are loaded again when they are scrolled to
+         */
+        void onReloadPages(int count);
+    }
+
     public NotesListAdapter(Context context) {
         super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        mToggledIds = new HashSet<Long>();
         mContext = context;
         mNotesCount = 0;
+        mFolderId = Notes.ID_ROOT_FOLDER;
+    }
+
+    /**
+     * Load the list page by page when it's scrolled instead of holding all the rows in one
+     * cursor, the cursors should be set by {@link #changePages} and {@link #appendPage}
+     */
+    public void setOnLoadPageListener(OnLoadPageListener listener) {
+        mOnLoadPageListener = listener;
+    }
+
+    private boolean isPaging() {
+        return mOnLoadPageListener != null;
+    }
+
+    /**
+     * Replace the loaded pages with the cursor of the first rows, the limit is the count of
+     * rows the cursor was queried with
+     */
+    public void changePages(Cursor cursor, int limit) {
+        changeCursor(cursor != null ? new NotesPageCursor(cursor) : null);
+        mHasMorePages = (cursor != null && cursor.getCount() >= limit);
+    }
+
+    /**
+     * The folder listed and the count of its notes, counted by a query since only some of
+     * them are loaded
+     */
+    public void setFolder(long folderId, int notesCount) {
+        mFolderId = folderId;
+        mNotesCount = notesCount;
+    }
+
+    /**
+     * Append the page loaded after the row of the key, the page is dropped if the list has
+     * been reloaded since it was requested
+     */
+    public void appendPage(String after, Cursor page, int limit) {
+        mPageLoading = false;
+        if (page == null) {
+            Log.e(TAG, "Load page failed");
+            mHasMorePages = false;
+            return;
+        }
+
+        int count = getCount();
+        Cursor last = (count > 0) ? (Cursor) getItem(count - 1) : null;
+        if (last == null || !after.equals(NoteItemData.getPageKey(last))) {
+            page.close();
+            return;
+        }
+
+        ((NotesPageCursor) getCursor()).addPage(page);
+        mHasMorePages = (page.getCount() >= limit);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (isPaging() && mHasMorePages && !mPageLoading
+                && position >= getCount() - PAGE_PREFETCH_DISTANCE) {
+            Cursor last = (Cursor) getItem(getCount() - 1);
+            if (last != null) {
+                mPageLoading = true;
+                mOnLoadPageListener.onLoadPage(NoteItemData.getPageKey(last));
+            }
+        }
+        return super.getView(position, convertView, parent);
     }
 
     @Override
@@ -60,12 +158,17 @@ public class NotesListAdapter extends CursorAdapter {
         if (view instanceof NotesListItem) {
             NoteItemData itemData = new NoteItemData(context, cursor);
             ((NotesListItem) view).bind(context, itemData, mChoiceMode,
-                    isSelectedItem(cursor.getPosition()));
+                    isSelected(cursor));
         }
     }
 
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
+        long id = getItemId(position);
+        if (checked != mAllSelected) {
+            mToggledIds.add(id);
+        } else {
+            mToggledIds.remove(id);
+        }
         notifyDataSetChanged();
     }
 
@@ -74,73 +177,93 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        mAllSelected = false;
+        mToggledIds.clear();
         mChoiceMode = mode;
     }
 
+    /**
+     * Select or unselect all the notes of the folder, the loaded ones or not
+     */
     public void selectAll(boolean checked) {
-        Cursor cursor = getCursor();
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
-                }
-            }
-        }
+        mAllSelected = checked;
+        mToggledIds.clear();
+        notifyDataSetChanged();
     }
 
+    /**
+     * The ids of the selected notes, queried if all the notes are selected. Call it off the
+     * main thread
+     */
     public HashSet<Long> getSelectedItemIds() {
         HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
+        Cursor c = querySelectedNotes(new String[] { NoteColumns.ID });
+        if (c == null) {
+            Log.e(TAG, "Query selected notes failed");
+            return itemSet;
+        }
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
                 if (id == Notes.ID_ROOT_FOLDER) {
                     Log.d(TAG, "Wrong item id, should not happen");
                 } else {
                     itemSet.add(id);
                 }
             }
+        } finally {
+            c.close();
         }
-
         return itemSet;
     }
 
     public HashSet<AppWidgetAttribute> getSelectedWidget() {
         HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * Don't close cursor here, only the adapter could close it
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
+        Cursor c = querySelectedNotes(new String[] {
+                NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE
+        });
+        if (c == null) {
+            Log.e(TAG, "Invalid cursor");
+            return null;
+        }
+        try {
+            while (c.moveToNext()) {
+                AppWidgetAttribute widget = new AppWidgetAttribute();
+                widget.widgetId = c.getInt(0);
+                widget.widgetType = c.getInt(1);
+                itemSet.add(widget);
             }
+        } finally {
+            c.close();
         }
         return itemSet;
     }
 
-    public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
-        }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (true == iter.next()) {
-                count++;
+    /**
+     * The selected notes: the checked ones, or all the notes of the folder but the unchecked
+     * ones
+     */
+    private Cursor querySelectedNotes(String[] projection) {
+        String toggled = TextUtils.join(",", mToggledIds);
+        String selection;
+        String[] selectionArgs = null;
+        if (mAllSelected) {
+            selection = NoteColumns.PARENT_ID + "=? AND " + NoteColumns.TYPE + "="
+                    + Notes.TYPE_NOTE;
+            if (!mToggledIds.isEmpty()) {
+                selection += " AND " + NoteColumns.ID + " NOT IN (" + toggled + ")";
             }
+            selectionArgs = new String[] { String.valueOf(mFolderId) };
+        } else {
+            selection = NoteColumns.ID + " IN (" + toggled + ")";
         }
-        return count;
+        return mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, projection,
+                selection, selectionArgs, null);
+    }
+
+    public int getSelectedCount() {
+        return mAllSelected ? Math.max(mNotesCount - mToggledIds.size(), 0)
+                : mToggledIds.size();
     }
 
     public boolean isAllSelected() {
@@ -149,24 +272,46 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
+        Cursor c = (Cursor) getItem(position);
+        return c != null && isSelected(c);
+    }
+
+    private boolean isSelected(Cursor cursor) {
+        long id = cursor.getLong(cursor.getColumnIndexOrThrow(NoteColumns.ID));
+        if (mAllSelected) {
+            return NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE
+                    && !mToggledIds.contains(id);
         }
-        return mSelectedIndex.get(position);
+        return mToggledIds.contains(id);
     }
 
     @Override
     protected void onContentChanged() {
+        if (isPaging()) {
+            /**
+             * Requerying the pages one by one would shift rows across the pages, so they are
+             * reloaded from the first one
+             */
+            mOnLoadPageListener.onReloadPages(getCount());
+            return;
+        }
         super.onContentChanged();
         calcNotesCount();
     }
 
     @Override
     public void changeCursor(Cursor cursor) {
+        mHasMorePages = false;
+        mPageLoading = false;
         super.changeCursor(cursor);
-        calcNotesCount();
+        if (!isPaging()) {
+            calcNotesCount();
+        }
     }
 
+    /**
+     * Count the notes of the cursor, the count of a paged list is set by {@link #setFolder}
+     */
     private void calcNotesCount() {
         mNotesCount = 0;
         for (int i = 0; i < getCount(); i++) {
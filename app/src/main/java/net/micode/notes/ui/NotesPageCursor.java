@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+
+/**
+ * The loaded pages of the notes list as one cursor. The pages are appended to it while the
+ * list is scrolled, so it isn't replaced by a new wrapper for every page. The content
+ * observers are registered on the first page, only that one is notified by the provider.
+ */
+class NotesPageCursor extends AbstractCursor {
+    private ArrayList<Cursor> mPages;
+
+    /**
+     * Position of the first row of each page
+     */
+    private ArrayList<Integer> mPageStarts;
+
+    private int mCount;
+
+    private Cursor mCursor;
+
+    public NotesPageCursor(Cursor firstPage) {
+        mPages = new ArrayList<Cursor>();
+        mPageStarts = new ArrayList<Integer>();
+        mCount = 0;
+        addPage(firstPage);
+    }
+
+    public void addPage(Cursor page) {
+        mPages.add(page);
+        mPageStarts.add(mCount);
+        mCount += page.getCount();
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int low = 0;
+        int high = mPages.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            if (mPageStarts.get(mid) <= newPosition) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        mCursor = mPages.get(low);
+        return mCursor.moveToPosition(newPosition - mPageStarts.get(low));
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.get(0).getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCursor.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        mPages.get(0).registerContentObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        mPages.get(0).unregisterContentObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Cursor page : mPages) {
+            page.close();
+        }
+    }
+}
@@ -45,6 +45,7 @@ import android.widget.Toast;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.GTaskSyncMetrics;
 import net.micode.notes.gtask.remote.GTaskSyncService;
 
 
@@ -55,6 +56,12 @@ public class NotesPreferenceActivity extends PreferenceActivity {
 
     public static final String PREFERENCE_LAST_SYNC_TIME = "pref_last_sync_time";
 
+    public static final String PREFERENCE_LAST_SYNC_POINT = "pref_last_sync_point";
+
+    public static final String PREFERENCE_LAST_FULL_SYNC_TIME = "pref_last_full_sync_time";
+
+    public static final String PREFERENCE_FULL_SYNC_REQUESTED = "pref_full_sync_requested";
+
     public static final String PREFERENCE_SET_BG_COLOR_KEY = "pref_key_bg_random_appear";
 
     private static final String PREFERENCE_SYNC_ACCOUNT_KEY = "pref_sync_account_key";
@@ -152,6 +159,23 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         });
 
         mAccountCategory.addPreference(accountPref);
+
+        Preference metricsPref = new Preference(this);
+        metricsPref.setTitle(getString(R.string.preferences_sync_metrics_title));
+        metricsPref.setSummary(getString(R.string.preferences_sync_metrics_summary));
+        metricsPref.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+            public boolean onPreferenceClick(Preference preference) {
+                // the timings of the recent syncs as json, for a bug report
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.putExtra(Intent.EXTRA_TEXT,
+                        GTaskSyncMetrics.exportHistory(NotesPreferenceActivity.this));
+                intent.setType("text/plain");
+                startActivity(Intent.createChooser(intent,
+                        getString(R.string.preferences_sync_metrics_title)));
+                return true;
+            }
+        });
+        mAccountCategory.addPreference(metricsPref);
     }
 
     private void loadSyncButton() {
@@ -301,16 +325,9 @@ public class NotesPreferenceActivity extends PreferenceActivity {
 
             // clean up last sync time
             setLastSyncTime(this, 0);
+            setLastSyncPoint(this, 0);
 
-            // clean up local gtask related info
-            new Thread(new Runnable() {
-                public void run() {
-                    ContentValues values = new ContentValues();
-                    values.put(NoteColumns.GTASK_ID, "");
-                    values.put(NoteColumns.SYNC_ID, 0);
-                    getContentResolver().update(Notes.CONTENT_NOTE_URI, values, null, null);
-                }
-            }).start();
+            clearGTaskInfo();
 
             Toast.makeText(NotesPreferenceActivity.this,
                     getString(R.string.preferences_toast_success_set_accout, account),
@@ -327,11 +344,28 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         if (settings.contains(PREFERENCE_LAST_SYNC_TIME)) {
             editor.remove(PREFERENCE_LAST_SYNC_TIME);
         }
+        if (settings.contains(PREFERENCE_LAST_SYNC_POINT)) {
+            editor.remove(PREFERENCE_LAST_SYNC_POINT);
+        }
+        if (settings.contains(PREFERENCE_LAST_FULL_SYNC_TIME)) {
+            editor.remove(PREFERENCE_LAST_FULL_SYNC_TIME);
+        }
+        if (settings.contains(PREFERENCE_FULL_SYNC_REQUESTED)) {
+            editor.remove(PREFERENCE_FULL_SYNC_REQUESTED);
+        }
         editor.commit();
 
-        // clean up local gtask related info
+        clearGTaskInfo();
+    }
+
+    /**
+     * Clean up local gtask related info. The journal of an interrupted sync holds the gids of
+     * the old account, it's dropped first so they are not written back by the next sync
+     */
+    private void clearGTaskInfo() {
         new Thread(new Runnable() {
             public void run() {
+                getContentResolver().delete(Notes.CONTENT_SYNC_JOURNAL_URI, null, null);
                 ContentValues values = new ContentValues();
                 values.put(NoteColumns.GTASK_ID, "");
                 values.put(NoteColumns.SYNC_ID, 0);
@@ -360,6 +394,55 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         return settings.getLong(PREFERENCE_LAST_SYNC_TIME, 0);
     }
 
+    /**
+     * The sync point of the server at the last sync, the changes after it are synced
+     * incrementally
+     */
+    public static void setLastSyncPoint(Context context, long syncPoint) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putLong(PREFERENCE_LAST_SYNC_POINT, syncPoint);
+        editor.commit();
+    }
+
+    public static long getLastSyncPoint(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return settings.getLong(PREFERENCE_LAST_SYNC_POINT, 0);
+    }
+
+    public static void setLastFullSyncTime(Context context, long time) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putLong(PREFERENCE_LAST_FULL_SYNC_TIME, time);
+        editor.commit();
+    }
+
+    public static long getLastFullSyncTime(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return settings.getLong(PREFERENCE_LAST_FULL_SYNC_TIME, 0);
+    }
+
+    /**
+     * The next sync should be a full one, it's kept until a full sync succeeds
+     */
+    public static void setFullSyncRequested(Context context, boolean requested) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putBoolean(PREFERENCE_FULL_SYNC_REQUESTED, requested);
+        editor.commit();
+    }
+
+    public static boolean isFullSyncRequested(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return settings.getBoolean(PREFERENCE_FULL_SYNC_REQUESTED, false);
+    }
+
     private class GTaskReceiver extends BroadcastReceiver {
 
         @Override
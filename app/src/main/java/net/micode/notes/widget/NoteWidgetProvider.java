@@ -36,12 +36,12 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
     public static final String [] PROJECTION = new String [] {
         NoteColumns.ID,
         NoteColumns.BG_COLOR_ID,
-        NoteColumns.SNIPPET
+        NoteColumns.PREVIEW
     };
 
     public static final int COLUMN_ID           = 0;
     public static final int COLUMN_BG_COLOR_ID  = 1;
-    public static final int COLUMN_SNIPPET      = 2;
+    public static final int COLUMN_PREVIEW      = 2;
 
     private static final String TAG = "NoteWidgetProvider";
 
@@ -87,7 +87,7 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
                         c.close();
                         return;
                     }
-                    snippet = c.getString(COLUMN_SNIPPET);
+                    snippet = c.getString(COLUMN_PREVIEW);
                     bgId = c.getInt(COLUMN_BG_COLOR_ID);
                     intent.putExtra(Intent.EXTRA_UID, c.getLong(COLUMN_ID));
                     intent.setAction(Intent.ACTION_VIEW);
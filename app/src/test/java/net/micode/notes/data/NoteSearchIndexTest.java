@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+public class NoteSearchIndexTest {
+    private static final String ALPHABET = "abAB1 ,.-你好笔记é";
+
+    @Test
+    public void testBuildGrams() {
+        assertEquals("not ote te e", NoteSearchIndex.buildGrams("note"));
+        assertEquals("a b 12 2", NoteSearchIndex.buildGrams("a, b-12"));
+        assertEquals("你好笔 好笔 笔",
+                NoteSearchIndex.buildGrams("你好笔"));
+        assertEquals("", NoteSearchIndex.buildGrams(" ,."));
+    }
+
+    @Test
+    public void testBuildMatchString() {
+        assertEquals("not ote", NoteSearchIndex.buildMatchString("note"));
+        assertEquals("no* and", NoteSearchIndex.buildMatchString("No, AND"));
+        assertEquals("好笔*", NoteSearchIndex.buildMatchString("好笔"));
+        assertNull(NoteSearchIndex.buildMatchString(" ,."));
+    }
+
+    /**
+     * Every note holding the search string must be found by the index, the index may find more
+     * notes since LIKE checks them after
+     */
+    @Test
+    public void testSubstringIsFound() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String text = randomString(random, 1 + random.nextInt(30));
+            int start = random.nextInt(text.length());
+            String search = text.substring(start,
+                    start + 1 + random.nextInt(text.length() - start));
+            String match = NoteSearchIndex.buildMatchString(search);
+            if (match == null) {
+                continue;
+            }
+            assertTrue("\"" + search + "\" is not found in \"" + text + "\"",
+                    matches(NoteSearchIndex.buildGrams(text), match));
+        }
+    }
+
+    /**
+     * The MATCH of the simple tokenizer, the ASCII letters are case folded and the terms ending
+     * with '*' are prefixes
+     */
+    private static boolean matches(String grams, String match) {
+        HashSet<String> tokens = new HashSet<String>(Arrays.asList(grams.toLowerCase().split(" ")));
+        for (String term : match.split(" ")) {
+            boolean found = false;
+            if (term.endsWith("*")) {
+                String prefix = term.substring(0, term.length() - 1);
+                for (String token : tokens) {
+                    found |= token.startsWith(prefix);
+                }
+            } else {
+                found = tokens.contains(term);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package net.micode.notes.gtask.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Times building a task list of 20k tasks and moving each of them to a random place, like a
+ * large list downloaded and reordered by the user, then checks the order and the links of
+ * the tasks. Not part of the default test run, see -Pbenchmarks in build.gradle
+ */
+public class ChildTaskListBenchmark {
+    private static final Logger LOG = Logger.getLogger(ChildTaskListBenchmark.class
+            .getSimpleName());
+
+    private static final int TASK_COUNT = 20000;
+
+    @Test
+    public void benchmarkBuildAndReshuffle() {
+        Random random = new Random(3);
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            Task task = new Task();
+            task.setGid("gid" + i);
+            tasks.add(task);
+        }
+
+        long start = System.nanoTime();
+        TaskList list = new TaskList();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            if (i % 2 == 0) {
+                assertTrue(list.addChildTask(tasks.get(i)));
+            } else {
+                assertTrue(list.addChildTask(tasks.get(i), random.nextInt(list.getChildTaskCount()
+                        + 1)));
+            }
+        }
+        long buildTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            assertTrue(list.moveChildTask(tasks.get(random.nextInt(TASK_COUNT)),
+                    random.nextInt(TASK_COUNT)));
+        }
+        long reshuffleTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            Task task = tasks.get(i);
+            assertSame(task, list.findChildTaskByGid(task.getGid()));
+            assertSame(task, list.getChildTaskByIndex(list.getChildTaskIndex(task)));
+        }
+        long lookupTime = System.nanoTime() - start;
+
+        LOG.info(String.format(
+                "%d tasks: build %.1fms, reshuffle %.1fms, lookup %.1fms", TASK_COUNT,
+                buildTime / 1000000.0, reshuffleTime / 1000000.0, lookupTime / 1000000.0));
+
+        ArrayList<Task> children = list.getChildTaskList();
+        assertEquals(TASK_COUNT, children.size());
+        for (int i = 0; i < children.size(); i++) {
+            assertSame(list, children.get(i).getParent());
+            assertSame(i == 0 ? null : children.get(i - 1), children.get(i).getPriorSibling());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.micode.notes.gtask.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+public class ChildTaskListTest {
+    private static final int OPERATIONS = 200000;
+
+    /**
+     * Random operations on the list and on an ArrayList must give the same results
+     */
+    @Test
+    public void testAgainstArrayList() {
+        Random random = new Random(11);
+        ChildTaskList list = new ChildTaskList();
+        ArrayList<Task> expected = new ArrayList<Task>();
+        HashMap<String, Task> gids = new HashMap<String, Task>();
+        int nextGid = 0;
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            int operation = random.nextInt(10);
+            // keep the list between a few hundred and a few thousand tasks
+            if (expected.size() < 300 || (operation < 4 && expected.size() < 3000)) {
+                Task task = new Task();
+                if (random.nextBoolean()) {
+                    task.setGid("gid" + nextGid++);
+                    gids.put(task.getGid(), task);
+                }
+                int index = random.nextInt(expected.size() + 1);
+                list.add(index, task);
+                expected.add(index, task);
+            } else if (operation < 6) {
+                Task task = expected.remove(random.nextInt(expected.size()));
+                assertTrue(list.remove(task));
+                if (task.getGid() != null) {
+                    gids.remove(task.getGid());
+                }
+                assertFalse(list.remove(task));
+            } else if (operation < 7) {
+                // a task added without gid gets it later
+                Task task = expected.get(random.nextInt(expected.size()));
+                if (task.getGid() == null) {
+                    task.setGid("gid" + nextGid++);
+                    gids.put(task.getGid(), task);
+                }
+            } else if (operation < 8) {
+                int index = random.nextInt(expected.size());
+                assertSame(expected.get(index), list.get(index));
+            } else if (operation < 9) {
+                Task task = expected.get(random.nextInt(expected.size()));
+                assertEquals(expected.indexOf(task), list.indexOf(task));
+                assertTrue(list.contains(task));
+            } else {
+                String gid = "gid" + random.nextInt(nextGid + 1);
+                assertSame(gids.get(gid), list.findByGid(gid));
+            }
+            assertEquals(expected.size(), list.size());
+            if (i % 10000 == 0) {
+                assertEquals(expected, list.toList());
+            }
+        }
+        assertEquals(expected, list.toList());
+        assertEquals(-1, list.indexOf(new Task()));
+        assertNull(list.findByGid(null));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetOutOfBounds() {
+        ChildTaskList list = new ChildTaskList();
+        list.add(0, new Task());
+        list.get(1);
+    }
+}
@@ -0,0 +1,99 @@
+package net.micode.notes.gtask.remote;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import net.micode.notes.gtask.data.TaskList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class TaskListNameIndexTest {
+    private static final int FOLDER_COUNT = 600;
+
+    private static final String PREFIX = "[MIUI_Notes]";
+
+    @Test
+    public void testSharedName() {
+        TaskListNameIndex index = new TaskListNameIndex();
+        TaskList first = newTaskList(PREFIX + "work");
+        TaskList second = newTaskList(PREFIX + "work");
+        index.add(first);
+        index.add(second);
+        assertSame(first, index.get(PREFIX + "work"));
+
+        first.setName(PREFIX + "home");
+        index.rename(first, PREFIX + "work");
+        assertSame(second, index.get(PREFIX + "work"));
+        assertSame(first, index.get(PREFIX + "home"));
+
+        second.setName(PREFIX + "home");
+        index.rename(second, PREFIX + "work");
+        assertNull(index.get(PREFIX + "work"));
+        assertSame(first, index.get(PREFIX + "home"));
+    }
+
+    /**
+     * Hundreds of folders, a part of them sharing names, are renamed at random. Each name must
+     * map to the list a scan in naming order finds first
+     */
+    @Test
+    public void testManyFolders() {
+        Random random = new Random(5);
+        TaskListNameIndex index = new TaskListNameIndex();
+        ArrayList<TaskList> lists = new ArrayList<TaskList>();
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            // every fifth folder takes the name of an earlier one
+            String name = i % 5 == 4 ? lists.get(random.nextInt(i)).getName() : PREFIX + "folder "
+                    + i;
+            TaskList tasklist = newTaskList(name);
+            index.add(tasklist);
+            lists.add(tasklist);
+        }
+        checkNames(index, lists);
+
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            TaskList tasklist = lists.get(random.nextInt(lists.size()));
+            String oldName = tasklist.getName();
+            // the new name is often taken already
+            String newName = random.nextBoolean() ? lists.get(random.nextInt(lists.size()))
+                    .getName() : PREFIX + "renamed " + i;
+            tasklist.setName(newName);
+            index.rename(tasklist, oldName);
+            if (!newName.equals(oldName)) {
+                lists.remove(tasklist);
+                lists.add(tasklist);
+            }
+            assertSame(find(lists, oldName), index.get(oldName));
+            assertSame(find(lists, newName), index.get(newName));
+        }
+        checkNames(index, lists);
+        assertNull(index.get(PREFIX + "no such folder"));
+
+        index.clear();
+        assertNull(index.get(lists.get(0).getName()));
+    }
+
+    private static void checkNames(TaskListNameIndex index, ArrayList<TaskList> lists) {
+        for (TaskList tasklist : lists) {
+            assertSame(find(lists, tasklist.getName()), index.get(tasklist.getName()));
+        }
+    }
+
+    private static TaskList find(ArrayList<TaskList> lists, String name) {
+        for (TaskList tasklist : lists) {
+            if (tasklist.getName().equals(name)) {
+                return tasklist;
+            }
+        }
+        return null;
+    }
+
+    private static TaskList newTaskList(String name) {
+        TaskList tasklist = new TaskList();
+        tasklist.setName(name);
+        return tasklist;
+    }
+}
@@ -0,0 +1,59 @@
+package net.micode.notes.tool;
+
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Times the merge of notes of growing sizes, with 1% of the lines changed on each side in
+ * separate places, staying under the edit distance the diff gives up at. Left out of the
+ * default test run:
+ * ./gradlew testDebugUnitTest -Pbenchmarks --tests '*TextMergerBenchmark'
+ */
+public class TextMergerBenchmark {
+    private static final Logger LOG = Logger.getLogger(TextMergerBenchmark.class
+            .getSimpleName());
+
+    private static final int[] LINE_COUNTS = new int[] {
+            100, 1000, 10000, 20000
+    };
+
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void benchmarkMerge() {
+        Random random = new Random(1);
+        for (int lineCount : LINE_COUNTS) {
+            String[] base = new String[lineCount];
+            for (int i = 0; i < lineCount; i++) {
+                base[i] = "line " + i + " of the note " + random.nextInt(100000);
+            }
+            String[] local = base.clone();
+            String[] remote = base.clone();
+            int changes = Math.max(1, lineCount / 100);
+            for (int i = 0; i < changes; i++) {
+                // the sides edit different lines with an unchanged line between them
+                int index = random.nextInt(lineCount / 4) * 4;
+                local[index] = "local edit " + i;
+                remote[index + 2] = "remote edit " + i;
+            }
+            String baseText = TextMerger.join(Arrays.asList(base));
+            String localText = TextMerger.join(Arrays.asList(local));
+            String remoteText = TextMerger.join(Arrays.asList(remote));
+
+            // warm up the jit first
+            assertNotNull(TextMerger.merge(baseText, localText, remoteText));
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                assertNotNull(TextMerger.merge(baseText, localText, remoteText));
+            }
+            long time = (System.nanoTime() - start) / ITERATIONS;
+            LOG.info(String.format("merge %d lines, %d changes each side: %.3fms",
+                    lineCount, changes, time / 1000000.0));
+        }
+    }
+}
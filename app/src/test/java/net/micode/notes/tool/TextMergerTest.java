@@ -0,0 +1,89 @@
+package net.micode.notes.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class TextMergerTest {
+    @Test
+    public void testOneSideChanged() {
+        assertEquals("a\nB\nc", TextMerger.merge("a\nb\nc", "a\nB\nc", "a\nb\nc"));
+        assertEquals("a\nB\nc", TextMerger.merge("a\nb\nc", "a\nb\nc", "a\nB\nc"));
+        assertEquals("same", TextMerger.merge("base", "same", "same"));
+    }
+
+    @Test
+    public void testChangesInDifferentLines() {
+        assertEquals("A\nb\nC", TextMerger.merge("a\nb\nc", "A\nb\nc", "a\nb\nC"));
+        assertEquals("x\na\nb\nc\ny", TextMerger.merge("a\nb\nc", "x\na\nb\nc", "a\nb\nc\ny"));
+        assertEquals("a\nc", TextMerger.merge("a\nb\nc\nd", "a\nc\nd", "a\nb\nc"));
+    }
+
+    @Test
+    public void testSameChangeOnBothSides() {
+        assertEquals("a\nB\nc\nD", TextMerger.merge("a\nb\nc\nd", "a\nB\nc\nD", "a\nB\nc\nd"));
+    }
+
+    @Test
+    public void testConflict() {
+        assertNull(TextMerger.merge("a\nb\nc", "a\nlocal\nc", "a\nremote\nc"));
+        assertNull(TextMerger.merge("a", "a\nlocal", "a\nremote"));
+    }
+
+    @Test
+    public void testTooManyChanges() {
+        StringBuilder base = new StringBuilder();
+        StringBuilder local = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            base.append("line ").append(i).append('\n');
+            local.append("local ").append(i).append('\n');
+        }
+        assertNull(TextMerger.merge(base.toString(), local.toString(), base + "remote"));
+    }
+
+    /**
+     * The edits of the two sides in separate halves of the text are both kept
+     */
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            ArrayList<String> base = randomLines(random, 2 + random.nextInt(40));
+            int half = base.size() / 2;
+            ArrayList<String> local = new ArrayList<String>(base);
+            ArrayList<String> remote = new ArrayList<String>(base);
+            ArrayList<String> expected = new ArrayList<String>(base);
+            // a shared line between the halves keeps the edits apart
+            int keep = half;
+            for (int j = 0; j < 3; j++) {
+                int index = random.nextInt(keep);
+                String line = "local " + i + " " + j;
+                local.set(index, line);
+                expected.set(index, line);
+            }
+            for (int j = 0; j < 3; j++) {
+                int index = keep + 1 + random.nextInt(Math.max(1, base.size() - keep - 1));
+                if (index >= base.size()) {
+                    break;
+                }
+                String line = "remote " + i + " " + j;
+                remote.set(index, line);
+                expected.set(index, line);
+            }
+            assertEquals(TextMerger.join(expected), TextMerger.merge(TextMerger.join(base),
+                    TextMerger.join(local), TextMerger.join(remote)));
+        }
+    }
+
+    private static ArrayList<String> randomLines(Random random, int count) {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            lines.add("line " + i + " " + random.nextInt(1000));
+        }
+        return lines;
+    }
+}